@@ -0,0 +1,285 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Daemon {
+
+	// A long-running interpreter that takes run requests over a Unix-domain
+	// socket or over stdin/stdout, so scripts don't each pay for JVM startup
+	// and a cold JIT. Prepared programs are cached and reused while their
+	// file is unchanged.
+	//
+	//   java Daemon --socket /tmp/lexical.sock
+	//   java Daemon --stdio
+	//
+	// A request is a block of "key: value" header lines ended by an empty
+	// line:
+	//
+	//   path: Test/Extra/ListAllPrimes.a     the script to run, or
+	//   source-length: 123                   that many bytes of source
+	//                                        follow the empty line
+	//   input: 30 40                         values for input statements
+	//   max-statements: 1000000              optional limits
+	//   max-millis: 5000
+	//
+	// The response is a sequence of frames. "O <n>" is followed by n bytes
+	// of program output, sent as the program prints. "E <status> [message]"
+	// ends the response: status 0 for success, 1 if the program failed.
+	// A connection may send any number of requests, one after another.
+	// lexical-client.c is the command-line client.
+	static final int CACHE_SIZE = 256;
+
+	static class CachedProgram {
+		long modified;
+		long length;
+		PreparedProgram prepared;
+	}
+
+
+	LinkedHashMap<String, CachedProgram> cache;
+
+
+	public Daemon() {
+		this.cache = new LinkedHashMap<String, CachedProgram>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, CachedProgram> eldest) {
+				return this.size() > CACHE_SIZE;
+			}
+		};
+	}
+
+
+	public static void main(String[] args) {
+		try {
+			Daemon daemon = new Daemon();
+			EngineMetrics.register();
+			EngineEvents.enabled = true;
+
+			if (args.length == 2 && args[0].equals("--socket")) {
+				daemon.serve(args[1]);
+			} else if (args.length == 1 && args[0].equals("--stdio")) {
+				daemon.serve(System.in, System.out);
+			} else {
+				System.out.println("Usage: java Daemon --socket PATH | --stdio");
+				System.exit(2);
+			}
+		} catch (Exception e) {
+			System.out.println(e);
+			System.exit(1);
+		}
+	}
+
+
+	public void serve(String socketPath) throws IOException {
+		// A stale socket from an earlier daemon is replaced, but nothing else
+		Path path = Paths.get(socketPath);
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+			if ((mode & 0170000) != 0140000) {
+				throw new IOException(socketPath + " exists and is not a socket.");
+			}
+			Files.delete(path);
+		}
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(socketPath));
+		ExecutorService workers = Executors.newCachedThreadPool();
+
+		while (true) {
+			SocketChannel client = server.accept();
+			workers.submit(() -> {
+				try (SocketChannel channel = client) {
+					this.serve(Channels.newInputStream(channel), Channels.newOutputStream(channel));
+				} catch (IOException e) {
+					// The client went away; nothing to report to
+				}
+				return null;
+			});
+		}
+	}
+
+
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		InputStream requests = new BufferedInputStream(in);
+
+		while (true) {
+			Map<String, String> headers = readHeaders(requests);
+			if (headers == null) {
+				return;
+			}
+			this.handle(headers, requests, out);
+		}
+	}
+
+
+	void handle(Map<String, String> headers, InputStream requests, OutputStream out) throws IOException {
+		FrameStream frames = new FrameStream(out);
+		PrintStream output = new PrintStream(frames, true, "UTF-8");
+		String error = null;
+
+		try {
+			PreparedProgram prepared;
+			if (headers.containsKey("source-length")) {
+				int length = Integer.parseInt(headers.get("source-length"));
+				byte[] source = requests.readNBytes(length);
+				prepared = this.prepareSource(new String(source, StandardCharsets.UTF_8));
+			} else if (headers.containsKey("path")) {
+				prepared = this.prepareFile(headers.get("path"));
+			} else {
+				throw new Exception("Request has neither path nor source-length.");
+			}
+
+			Interpreter interpreter = new Interpreter(prepared);
+			interpreter.out = output;
+			interpreter.input = new Scanner(headers.getOrDefault("input", ""));
+
+			if (headers.containsKey("max-statements")) {
+				interpreter.maxStatements = Long.parseLong(headers.get("max-statements"));
+			}
+			if (headers.containsKey("max-millis")) {
+				interpreter.deadline = System.nanoTime() + Long.parseLong(headers.get("max-millis")) * 1000000L;
+			}
+
+			interpreter.run();
+		} catch (Exception e) {
+			error = e.toString();
+		}
+
+		output.flush();
+		String end = error == null ? "E 0\n" : "E 1 " + error.replace('\n', ' ') + "\n";
+		out.write(end.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+
+	PreparedProgram prepareFile(String path) throws Exception {
+		File file = new File(path).getCanonicalFile();
+		String key = "path:" + file.getPath();
+		long modified = file.lastModified();
+		long length = file.length();
+
+		synchronized (this.cache) {
+			CachedProgram cached = this.cache.get(key);
+			if (cached != null && cached.modified == modified && cached.length == length) {
+				return cached.prepared;
+			}
+		}
+
+		CachedProgram cached = new CachedProgram();
+		cached.modified = modified;
+		cached.length = length;
+		cached.prepared = PreparedProgram.fromFile(file.getPath());
+
+		synchronized (this.cache) {
+			this.cache.put(key, cached);
+		}
+		return cached.prepared;
+	}
+
+
+	PreparedProgram prepareSource(String source) throws Exception {
+		String key = "source:" + source;
+
+		synchronized (this.cache) {
+			CachedProgram cached = this.cache.get(key);
+			if (cached != null) {
+				return cached.prepared;
+			}
+		}
+
+		CachedProgram cached = new CachedProgram();
+		cached.prepared = PreparedProgram.fromSource("<source>", source);
+
+		synchronized (this.cache) {
+			this.cache.put(key, cached);
+		}
+		return cached.prepared;
+	}
+
+
+	static Map<String, String> readHeaders(InputStream in) throws IOException {
+		// Returns null at end of input
+		LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+
+		while (true) {
+			String line = readLine(in);
+			if (line == null) {
+				return headers.isEmpty() ? null : headers;
+			}
+			if (line.isEmpty()) {
+				if (headers.isEmpty()) {
+					continue;
+				}
+				return headers;
+			}
+
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+	}
+
+
+	static String readLine(InputStream in) throws IOException {
+		// Byte at a time, so that any source bytes after the headers stay
+		// in the stream
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		while (true) {
+			int c = in.read();
+			if (c == -1) {
+				return line.size() == 0 ? null : line.toString("UTF-8");
+			}
+			if (c == '\n') {
+				String text = line.toString("UTF-8");
+				return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+			}
+			line.write(c);
+		}
+	}
+
+
+	static class FrameStream extends OutputStream {
+
+		// Wraps program output in "O <n>" frames
+		OutputStream out;
+
+		FrameStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			this.out.write(("O " + len + "\n").getBytes(StandardCharsets.UTF_8));
+			this.out.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+public class EngineEvents {
+
+	// Java Flight Recorder events for the lexer and interpreter. None of them
+	// record stack traces, and a disabled event costs little more than the
+	// isEnabled() check, so they are safe to leave in under load. Enable them
+	// with -XX:StartFlightRecording or a JFR configuration naming "lexical.*".
+	//
+	// Loading the first event class starts up jdk.jfr, which takes longer
+	// than running a small script, so events are only created when enabled
+	// is set: by -Dinterpreter.jfr=true, or always in the Daemon.
+	static volatile boolean enabled = Boolean.getBoolean("interpreter.jfr");
+
+
+	@Name("lexical.Lex")
+	@Label("Lex File")
+	@Category("Lexical Analysis")
+	@Description("Tokenizing one source file")
+	@StackTrace(false)
+	static class Lex extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Tokens")
+		long tokens;
+
+		@Label("Characters")
+		@DataAmount(DataAmount.BYTES)
+		long characters;
+	}
+
+
+	@Name("lexical.ProgramLoad")
+	@Label("Program Load")
+	@Category("Lexical Analysis")
+	@Description("Lexing and preparing a program before it runs")
+	@StackTrace(false)
+	static class ProgramLoad extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Tokens")
+		long tokens;
+	}
+
+
+	@Name("lexical.Run")
+	@Label("Program Run")
+	@Category("Lexical Analysis")
+	@Description("One run of a program by the interpreter")
+	@StackTrace(false)
+	static class Run extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Statements Executed")
+		long statements;
+
+		@Label("Subroutine Calls")
+		long calls;
+
+		@Label("Output")
+		@DataAmount(DataAmount.BYTES)
+		long outputBytes;
+
+		@Label("Memo Hits")
+		long memoHits;
+
+		@Label("Memo Misses")
+		long memoMisses;
+
+		@Label("Error")
+		String error;
+
+		@Label("Error Line")
+		int line;
+	}
+
+
+	@Name("lexical.SubroutineCall")
+	@Label("Subroutine Call")
+	@Category("Lexical Analysis")
+	@Description("A call statement, from the call to the return")
+	@StackTrace(false)
+	static class SubroutineCall extends Event {
+		@Label("Subroutine")
+		String sub;
+
+		@Label("Call Line")
+		int line;
+	}
+}
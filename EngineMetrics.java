@@ -0,0 +1,192 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+public class EngineMetrics implements EngineMetricsMBean {
+
+	// Process-wide counters for the lexer and interpreter. Updates are
+	// LongAdder increments, so concurrent runs don't contend on them.
+	// Publishing them over JMX starts the platform MBean server, which costs
+	// more than a short script, so that only happens on register(): from the
+	// Daemon, or from Interpreter.main with -Dinterpreter.jmx=true.
+	static final EngineMetrics global = new EngineMetrics();
+	static boolean registered = false;
+
+	LongAdder filesLexed = new LongAdder();
+	LongAdder tokensLexed = new LongAdder();
+	LongAdder lexNanos = new LongAdder();
+	LongAdder programsLoaded = new LongAdder();
+	LongAdder loadNanos = new LongAdder();
+	LongAdder runs = new LongAdder();
+	LongAdder statements = new LongAdder();
+	LongAdder calls = new LongAdder();
+	LongAdder callNanos = new LongAdder();
+	LongAdder outputBytes = new LongAdder();
+	LongAdder errors = new LongAdder();
+	LongAdder memoHits = new LongAdder();
+	LongAdder memoMisses = new LongAdder();
+	ConcurrentHashMap<String, LongAdder> callsBySub = new ConcurrentHashMap<String, LongAdder>();
+	ConcurrentHashMap<String, LongAdder> nanosBySub = new ConcurrentHashMap<String, LongAdder>();
+
+
+	static synchronized void register() {
+		if (registered) {
+			return;
+		}
+		registered = true;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(global,
+					new ObjectName("lexical:type=EngineMetrics"));
+		} catch (Exception e) {
+			// Metrics still work in-process without JMX
+		}
+	}
+
+
+	public void recordLex(long tokens, long nanos) {
+		this.filesLexed.increment();
+		this.tokensLexed.add(tokens);
+		this.lexNanos.add(nanos);
+	}
+
+
+	public void recordLoad(long nanos) {
+		this.programsLoaded.increment();
+		this.loadNanos.add(nanos);
+	}
+
+
+	public void recordCall(String sub, long nanos) {
+		this.calls.increment();
+		this.callNanos.add(nanos);
+		this.callsBySub.computeIfAbsent(sub, k -> new LongAdder()).increment();
+		this.nanosBySub.computeIfAbsent(sub, k -> new LongAdder()).add(nanos);
+	}
+
+
+	public void recordRun(long statements, long outputBytes, boolean failed) {
+		this.runs.increment();
+		this.statements.add(statements);
+		this.outputBytes.add(outputBytes);
+		if (failed) {
+			this.errors.increment();
+		}
+	}
+
+
+	public void recordMemo(long hits, long misses) {
+		this.memoHits.add(hits);
+		this.memoMisses.add(misses);
+	}
+
+
+	public long getFilesLexed() {
+		return this.filesLexed.sum();
+	}
+
+	public long getTokensLexed() {
+		return this.tokensLexed.sum();
+	}
+
+	public long getLexNanos() {
+		return this.lexNanos.sum();
+	}
+
+	public long getProgramsLoaded() {
+		return this.programsLoaded.sum();
+	}
+
+	public long getLoadNanos() {
+		return this.loadNanos.sum();
+	}
+
+	public long getRuns() {
+		return this.runs.sum();
+	}
+
+	public long getStatementsExecuted() {
+		return this.statements.sum();
+	}
+
+	public long getSubroutineCalls() {
+		return this.calls.sum();
+	}
+
+	public long getSubroutineNanos() {
+		return this.callNanos.sum();
+	}
+
+	public long getOutputBytes() {
+		return this.outputBytes.sum();
+	}
+
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	public long getMemoHits() {
+		return this.memoHits.sum();
+	}
+
+	public long getMemoMisses() {
+		return this.memoMisses.sum();
+	}
+
+	public Map<String, Long> getCallsBySubroutine() {
+		return snapshot(this.callsBySub);
+	}
+
+	public Map<String, Long> getNanosBySubroutine() {
+		return snapshot(this.nanosBySub);
+	}
+
+
+	static Map<String, Long> snapshot(ConcurrentHashMap<String, LongAdder> counters) {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+
+	public void reset() {
+		LongAdder[] all = { this.filesLexed, this.tokensLexed, this.lexNanos, this.programsLoaded,
+				this.loadNanos, this.runs, this.statements, this.calls, this.callNanos,
+				this.outputBytes, this.errors, this.memoHits, this.memoMisses };
+		for (LongAdder adder : all) {
+			adder.reset();
+		}
+		this.callsBySub.clear();
+		this.nanosBySub.clear();
+	}
+
+
+	static class CountingStream extends FilterOutputStream {
+
+		// Counts the bytes a run prints
+		long count;
+
+		CountingStream(OutputStream out) {
+			super(out);
+			this.count = 0;
+		}
+
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+import java.util.Map;
+
+public interface EngineMetricsMBean {
+
+	// Attributes published over JMX as lexical:type=EngineMetrics
+
+	long getFilesLexed();
+
+	long getTokensLexed();
+
+	long getLexNanos();
+
+	long getProgramsLoaded();
+
+	long getLoadNanos();
+
+	long getRuns();
+
+	long getStatementsExecuted();
+
+	long getSubroutineCalls();
+
+	long getSubroutineNanos();
+
+	long getOutputBytes();
+
+	long getErrors();
+
+	long getMemoHits();
+
+	long getMemoMisses();
+
+	Map<String, Long> getCallsBySubroutine();
+
+	Map<String, Long> getNanosBySubroutine();
+
+	void reset();
+}
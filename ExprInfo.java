@@ -0,0 +1,28 @@
+public class ExprInfo {
+
+	// What the loop optimizer has learned about one expression or term
+
+	static final int NONE = 0;
+	static final int INVARIANT = 1;
+	static final int INDUCTION = 2;
+
+	final int kind;
+	final int end;            // pc just past the expression
+	final String variable;    // induction variable, for INDUCTION
+	final int step;
+	final Token multiplier;
+
+
+	ExprInfo(int kind, int end) {
+		this(kind, end, null, 0, null);
+	}
+
+
+	ExprInfo(int kind, int end, String variable, int step, Token multiplier) {
+		this.kind = kind;
+		this.end = end;
+		this.variable = variable;
+		this.step = step;
+		this.multiplier = multiplier;
+	}
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class Inliner {
+
+	// Replaces "call NAME" with a copy of the subroutine's body when the body
+	// is small, so the call costs nothing at run time and the loop optimizer
+	// sees the body as part of the surrounding code. Runs once, on the token
+	// list of a PreparedProgram, before it is analyzed.
+	//
+	// A subroutine is inlined when:
+	//   - it is defined once, at the top level of the program, before the call
+	//   - its body is straight-line statements (and calls) ending in a single
+	//     return, so no if, while or for can be mismatched by the copy
+	//   - the body, with its own calls inlined, is at most budget tokens
+	//   - the call ends its line, so the copy is not followed by something
+	//     like the endif of a one-line if
+	//
+	// The copies keep the line numbers of the subroutine's own tokens, so
+	// errors are still reported at the original source line. Each copy is
+	// preceded by an INLINED_CALL statement naming the sub, which the
+	// Interpreter counts as a call in EngineMetrics and the JFR events.
+	static final int DEFAULT_BUDGET = 40;
+
+	ArrayList<Token> program;
+	int budget;
+	HashMap<String, Integer> starts;           // Position of "sub NAME" for top level subs
+	HashSet<String> redefined;
+	HashMap<String, ArrayList<Token>> bodies;  // Inlinable bodies, calls already expanded
+
+
+	Inliner(ArrayList<Token> program, int budget) {
+		this.program = program;
+		this.budget = budget;
+		this.starts = new HashMap<String, Integer>();
+		this.redefined = new HashSet<String>();
+		this.bodies = new HashMap<String, ArrayList<Token>>();
+	}
+
+
+	public static ArrayList<Token> inline(ArrayList<Token> program) {
+		int budget = Integer.getInteger("interpreter.inline.budget", DEFAULT_BUDGET);
+		if (budget <= 0) {
+			return program;
+		}
+		return new Inliner(program, budget).run();
+	}
+
+
+	ArrayList<Token> run() {
+		this.findSubs();
+
+		// Subroutines are visited in source order, so a sub's callees that
+		// are defined before it have their bodies ready. A sub is not yet in
+		// bodies while its own body is expanded, so recursion stays a call.
+		for (int start : this.sortedStarts()) {
+			String name = this.program.get(start + 1).value;
+			ArrayList<Token> body = this.body(start);
+
+			if (body != null && !this.redefined.contains(name)) {
+				body = this.expand(body, 0, body.size(), start);
+				if (body.size() <= this.budget && !this.callsLater(body, start)) {
+					this.bodies.put(name, body);
+				}
+			}
+		}
+
+		if (this.bodies.isEmpty()) {
+			return this.program;
+		}
+		return this.expand(this.program, 0, this.program.size(), this.program.size());
+	}
+
+
+	void findSubs() {
+		int depth = 0;
+
+		for (int i = 0; i < this.program.size(); i++) {
+			TokenType type = this.program.get(i).type;
+
+			if (type == TokenType.SUB && depth == 0 && this.program.get(i + 1).type == TokenType.NAME) {
+				String name = this.program.get(i + 1).value;
+				if (this.starts.containsKey(name)) {
+					this.redefined.add(name);
+				}
+				this.starts.put(name, i);
+			}
+
+			if (type == TokenType.SUB || type == TokenType.IF || type == TokenType.WHILE || type == TokenType.FOR) {
+				depth++;
+			} else if (type == TokenType.ENDSUB || type == TokenType.ENDIF || type == TokenType.ENDWHILE
+					|| type == TokenType.ENDFOR) {
+				depth--;
+			}
+		}
+
+		// A sub also defined inside a block may be redefined at run time
+		for (int i = 0; i + 1 < this.program.size(); i++) {
+			if (this.program.get(i).type == TokenType.SUB && this.program.get(i + 1).type == TokenType.NAME) {
+				String name = this.program.get(i + 1).value;
+				Integer start = this.starts.get(name);
+				if (start == null || start != i) {
+					this.redefined.add(name);
+				}
+			}
+		}
+	}
+
+
+	ArrayList<Integer> sortedStarts() {
+		ArrayList<Integer> sorted = new ArrayList<Integer>(this.starts.values());
+		sorted.sort(null);
+		return sorted;
+	}
+
+
+	ArrayList<Token> body(int start) {
+		// The statements of "sub NAME: ... return endsub", without the final
+		// return, or null if the sub can't be inlined
+		int i = start + 2;
+		if (this.program.get(i).type != TokenType.COLON || this.program.get(i + 1).type != TokenType.NEWLINE) {
+			return null;
+		}
+		i += 2;
+
+		ArrayList<Token> body = new ArrayList<Token>();
+		for (; i < this.program.size(); i++) {
+			Token t = this.program.get(i);
+
+			switch (t.type) {
+			case RETURN:
+				// Only comments and blank lines may follow the return
+				for (int j = i + 1; j < this.program.size(); j++) {
+					TokenType after = this.program.get(j).type;
+					if (after == TokenType.ENDSUB) {
+						return trim(body);
+					} else if (after != TokenType.NEWLINE && after != TokenType.COMMENT) {
+						return null;
+					}
+				}
+				return null;
+
+			case IF: case ELSE: case ENDIF: case WHILE: case ENDWHILE: case FOR: case ENDFOR:
+			case SUB: case ENDSUB: case END: case EOF:
+				return null;
+
+			case COMMENT:
+				break;
+
+			default:
+				body.add(t);
+			}
+		}
+		return null;
+	}
+
+
+	boolean callsLater(ArrayList<Token> body, int start) {
+		// True if a call is left that may lead back to the sub at start
+		for (int i = 0; i + 1 < body.size(); i++) {
+			if (body.get(i).type == TokenType.CALL) {
+				Integer callee = this.starts.get(body.get(i + 1).value);
+				if (callee == null || callee >= start) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+
+	static boolean endsLine(ArrayList<Token> tokens, int next, int to) {
+		// The end of a body counts, since the line continues at its call site
+		if (next >= to) {
+			return true;
+		}
+		TokenType type = tokens.get(next).type;
+		return type == TokenType.NEWLINE || type == TokenType.COMMENT;
+	}
+
+
+	static ArrayList<Token> trim(ArrayList<Token> body) {
+		// Drop blank lines at either end; the call site supplies the newline
+		int from = 0;
+		int to = body.size();
+		while (from < to && body.get(from).type == TokenType.NEWLINE) {
+			from++;
+		}
+		while (to > from && body.get(to - 1).type == TokenType.NEWLINE) {
+			to--;
+		}
+		return new ArrayList<Token>(body.subList(from, to));
+	}
+
+
+	ArrayList<Token> expand(ArrayList<Token> tokens, int from, int to, int position) {
+		// Copies tokens [from, to), replacing the calls to inlinable subs
+		// defined before position. Within the program itself, position is
+		// taken as each call's own index.
+		boolean inProgram = tokens == this.program;
+		ArrayList<Token> result = new ArrayList<Token>(to - from);
+
+		for (int i = from; i < to; i++) {
+			Token t = tokens.get(i);
+
+			if (t.type == TokenType.CALL && i + 1 < to && tokens.get(i + 1).type == TokenType.NAME) {
+				String name = tokens.get(i + 1).value;
+				ArrayList<Token> body = this.bodies.get(name);
+				int callAt = inProgram ? i : position;
+
+				if (body != null && this.starts.get(name) < callAt && endsLine(tokens, i + 2, to)) {
+					result.add(new Token(TokenType.INLINED_CALL, name, t.line));
+					result.add(new Token(TokenType.NEWLINE, null, t.line));
+					for (Token b : body) {
+						result.add(new Token(b.type, b.value, b.line));
+					}
+					i++;
+					continue;
+				}
+			}
+			result.add(t);
+		}
+		return result;
+	}
+}
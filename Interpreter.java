@@ -1,5 +1,7 @@
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 
 import java.util.Scanner;
 
@@ -9,28 +11,101 @@ public class Interpreter {
 	int pc;
 	Token currentToken;
 	HashMap<String, Integer> symbols;
+	HashMap<String, int[]> arrays;
 	HashMap<String, Integer> subs;
+	ProgramAnalysis analysis;
+	LoopOptimizer loops;
+	boolean optimizeLoops;
+	SubroutineCache memo;
+	LinkedHashSet<String> writeLog;   // Variables assigned since recording began
+	int parallelThreshold;
+	PrintStream out;
+	String filename;
+	ArrayList<String> diagnostics;   // Lexer errors, printed by run()
+	long statements;    // Statements executed, for EngineMetrics
+	long calls;
+	Scanner input;
+	long maxStatements;  // 0 for no limit
+	long deadline;       // System.nanoTime() to stop at, 0 for no limit
 
 
 	public Interpreter(String filename) throws Exception {
+		this(PreparedProgram.fromFile(filename));
+	}
+
+
+	public Interpreter(PreparedProgram prepared) throws Exception {
 
-		Lexer lexer = new Lexer(filename);
-		this.program = new ArrayList<Token>();
-		Token t;
+		this.program = prepared.program;
 		this.pc = 0;
 
 		this.symbols = new HashMap<String, Integer>();
+		this.arrays = new HashMap<String, int[]>();
 		this.subs = new HashMap<String, Integer>();
 
-		// Read all of the program tokens into an ArrayList
-		do {
-			t = lexer.nextToken();
-			this.program.add(t);
-		} while (t.type != TokenType.EOF);
-
 		// Get the first Token
 		this.pc = 0;
 		this.currentToken = this.program.get(this.pc);
+
+		this.analysis = prepared.analysis;
+		this.loops = new LoopOptimizer(this);
+		this.optimizeLoops = Boolean.parseBoolean(System.getProperty("interpreter.optimizeLoops", "false"));
+		this.memo = new SubroutineCache(Integer.getInteger("interpreter.memo.capacity", 1024),
+				System.getProperty("interpreter.memo.eviction", "lru"),
+				Integer.getInteger("interpreter.memo.probe", SubroutineCache.DEFAULT_PROBE));
+		this.writeLog = null;
+		this.parallelThreshold = Integer.getInteger("interpreter.parallel.minIterations", 64);
+		this.out = System.out;
+		this.filename = prepared.name;
+		this.diagnostics = prepared.diagnostics;
+		this.statements = 0;
+		this.calls = 0;
+		this.input = null;
+		this.maxStatements = 0;
+		this.deadline = 0;
+	}
+
+
+	public Interpreter(Interpreter parent) {
+
+		// A worker that runs part of a parallel loop: it shares the program
+		// and everything derived from it, but has its own variables and pc
+		this.program = parent.program;
+		this.symbols = new HashMap<String, Integer>(parent.symbols);
+		this.arrays = parent.arrays;     // Parallel loops never store into arrays
+		this.subs = parent.subs;
+		this.analysis = parent.analysis;
+		this.loops = new LoopOptimizer(this);
+		this.optimizeLoops = parent.optimizeLoops;
+		this.memo = parent.memo;
+		this.writeLog = null;
+		this.parallelThreshold = parent.parallelThreshold;
+		this.out = parent.out;
+		this.filename = parent.filename;
+		this.diagnostics = parent.diagnostics;
+		this.statements = 0;
+		this.calls = 0;
+		this.input = null;
+		this.maxStatements = parent.maxStatements;
+		this.deadline = parent.deadline;
+		this.jump(parent.pc);
+	}
+
+
+	public void assign(String name, int value) {
+		// All variable writes go through here so that they can be recorded
+		this.symbols.put(name, value);
+		
+		if (this.writeLog != null) {
+			this.writeLog.add(name);
+		}
+	}
+
+
+	public void jump(int target) {
+		// Move directly to another token, as loops and calls do
+		this.pc = target;
+		this.currentToken = this.program.get(this.pc);
 	}
 
 
@@ -63,6 +138,12 @@ public class Interpreter {
 			String name = this.currentToken.value;
 			this.consume(TokenType.NAME);
 			
+			if (this.currentToken.type == TokenType.LEFT_BRACKET) {
+				int[] array = this.lookupArray(name);
+				int index = this.evalIndex(name, array);
+				return array[index];
+			}
+			
 			if (this.symbols.containsKey(name)) {
 				return this.symbols.get(name);
 			} else {
@@ -96,6 +177,15 @@ public class Interpreter {
 
 
 	public int evalTerm() throws Exception {
+		// Inside a loop, the optimizer may already know the value
+		if (this.loops.active()) {
+			return this.loops.evalTerm();
+		}
+		return this.evalProduct();
+	}
+
+
+	public int evalProduct() throws Exception {
 		// A term consists of at least one factor ,followed by any 
 		// number of terms separated by multiplication and division operations
 		int value = this.evalUnaryTerm();
@@ -120,6 +210,15 @@ public class Interpreter {
 
 
 	public int evalExpression() throws Exception {
+		// Inside a loop, the optimizer may already know the value
+		if (this.loops.active()) {
+			return this.loops.evalExpression();
+		}
+		return this.evalArithmetic();
+	}
+
+
+	public int evalArithmetic() throws Exception {
 		// An expression consists of at least one term ,followed
 		// by any number of terms separated by plus and minus operations
 		int value = this.evalTerm();
@@ -138,83 +237,35 @@ public class Interpreter {
 	}
 
 
-	public int evalConditional() throws Exception {
-		// An expression consists of at least one arithmetic expression,
-		// possibly joined to a second by a relational operator
-		int value = this.evalExpression();
-
-		// Add additional cases for the other relational operators
-		if (this.currentToken.type == TokenType.LESS_THAN ||
-			this.currentToken.type == TokenType.LESS_THAN_OR_EQUAL ||
-			this.currentToken.type == TokenType.GREATER_THAN ||
-			this.currentToken.type == TokenType.GREATER_THAN_OR_EQUAL ||
-			this.currentToken.type == TokenType.NOT_EQUAL ||
-			this.currentToken.type == TokenType.EQUAL) {
-
-			if (this.currentToken.type == TokenType.LESS_THAN) {
-				this.consume(TokenType.LESS_THAN);
-				int lhs = value;
-				int rhs = this.evalExpression();
-				if (lhs < rhs) {
-					return 1;
-				} else {
-					return 0; 
-				}
-			}
-			
-			else if (this.currentToken.type == TokenType.LESS_THAN_OR_EQUAL) {
-				this.consume(TokenType.LESS_THAN_OR_EQUAL);
-				int lhs = value;
-				int rhs = this.evalExpression();
-				if (lhs <= rhs) {
-					return 1;
-				} else {
-					return 0;
-				}
-			}
+	public boolean evalConditional() throws Exception {
+		// A condition is one or more terms joined by OR. Evaluation short-
+		// circuits: once the result is known, the rest of the condition is
+		// jumped over without being evaluated.
+		boolean value = this.evalAndCondition();
 
-			else if (this.currentToken.type == TokenType.GREATER_THAN) {
-				this.consume(TokenType.GREATER_THAN);
-				int lhs = value;
-				int rhs = this.evalExpression();
-				if (lhs > rhs) {
-					return 1;
-				} else {
-					return 0; 
-				}
-			}
-			
-			else if (this.currentToken.type == TokenType.GREATER_THAN_OR_EQUAL) {
-				this.consume(TokenType.GREATER_THAN_OR_EQUAL);
-				int lhs = value;
-				int rhs = this.evalExpression();
-				if (lhs >= rhs) {
-					return 1;
-				} else {
-					return 0;
-				}
-			}
-			
-			else if (this.currentToken.type == TokenType.NOT_EQUAL) {
-				this.consume(TokenType.NOT_EQUAL);
-				int lhs = value;
-				int rhs = this.evalExpression();
-				if (lhs != rhs) {
-					return 1;
-				} else {
-					return 0;
-				}
+		while (this.currentToken.type == TokenType.OR) {
+			this.consume(TokenType.OR);
+			if (value) {
+				this.jump(this.analysis.conditionEnd(this.pc, false));
+			} else {
+				value = this.evalAndCondition();
 			}
-			
-			else if (this.currentToken.type == TokenType.EQUAL) {
-				this.consume(TokenType.EQUAL);
-				int lhs = value;
-				int rhs = this.evalExpression();
-				if (lhs == rhs) {
-					return 1;
-				} else {
-					return 0;
-				}
+		}
+
+		return value;
+	}
+
+
+	public boolean evalAndCondition() throws Exception {
+		// A term is one or more factors joined by AND, which binds tighter than OR
+		boolean value = this.evalNotCondition();
+
+		while (this.currentToken.type == TokenType.AND) {
+			this.consume(TokenType.AND);
+			if (!value) {
+				this.jump(this.analysis.conditionEnd(this.pc, true));
+			} else {
+				value = this.evalNotCondition();
 			}
 		}
 
@@ -222,11 +273,120 @@ public class Interpreter {
 	}
 
 
+	public boolean evalNotCondition() throws Exception {
+		// A factor is a relation, optionally negated by NOT
+		if (this.currentToken.type == TokenType.NOT) {
+			this.consume(TokenType.NOT);
+			return !this.evalNotCondition();
+		}
+		return this.evalRelation();
+	}
+
+
+	public boolean evalRelation() throws Exception {
+		// Parentheses around a condition group it; parentheses around
+		// arithmetic are left to evalExpression
+		if (this.currentToken.type == TokenType.LEFT_PAREN && this.analysis.isConditionGroup(this.pc)) {
+			this.consume(TokenType.LEFT_PAREN);
+			boolean value = this.evalConditional();
+			this.consume(TokenType.RIGHT_PAREN);
+			return value;
+		}
+
+		// A relation is an arithmetic expression, possibly compared to a
+		// second by a relational operator. On its own, an expression is
+		// true when it equals 1.
+		int lhs = this.evalExpression();
+
+		if (this.currentToken.type == TokenType.LESS_THAN) {
+			this.consume(TokenType.LESS_THAN);
+			return lhs < this.evalExpression();
+		}
+		
+		else if (this.currentToken.type == TokenType.LESS_THAN_OR_EQUAL) {
+			this.consume(TokenType.LESS_THAN_OR_EQUAL);
+			return lhs <= this.evalExpression();
+		}
+
+		else if (this.currentToken.type == TokenType.GREATER_THAN) {
+			this.consume(TokenType.GREATER_THAN);
+			return lhs > this.evalExpression();
+		}
+		
+		else if (this.currentToken.type == TokenType.GREATER_THAN_OR_EQUAL) {
+			this.consume(TokenType.GREATER_THAN_OR_EQUAL);
+			return lhs >= this.evalExpression();
+		}
+		
+		else if (this.currentToken.type == TokenType.NOT_EQUAL) {
+			this.consume(TokenType.NOT_EQUAL);
+			return lhs != this.evalExpression();
+		}
+		
+		else if (this.currentToken.type == TokenType.EQUAL) {
+			this.consume(TokenType.EQUAL);
+			return lhs == this.evalExpression();
+		}
+
+		return lhs == 1;
+	}
+
+
+	public int[] lookupArray(String name) throws Exception {
+		int[] array = this.arrays.get(name);
+		
+		if (array == null) {
+			throw new Exception("Unrecognized array: " + name);
+		}
+		return array;
+	}
+	
+	
+	public int evalIndex(String name, int[] array) throws Exception {
+		// Evaluates [EXPRESSION] and checks it against the array's bounds
+		this.consume(TokenType.LEFT_BRACKET);
+		int index = this.evalExpression();
+		this.consume(TokenType.RIGHT_BRACKET);
+		
+		if (index < 0 || index >= array.length) {
+			throw new Exception("Array index out of bounds: " + name + "[" + index + "], size " + array.length);
+		}
+		return index;
+	}
+
+
+	public void evalVarStatement() throws Exception {
+		
+		// An array declaration has the form var NAME[EXPRESSION]. The
+		// elements are stored as a primitive int[] and start out as 0.
+		this.consume(TokenType.VAR);
+		String name = this.currentToken.value;
+		this.consume(TokenType.NAME);
+		this.consume(TokenType.LEFT_BRACKET);
+		int size = this.evalExpression();
+		this.consume(TokenType.RIGHT_BRACKET);
+		
+		if (size < 0) {
+			throw new Exception("Negative array size: " + name + "[" + size + "]");
+		}
+		this.arrays.put(name, new int[size]);
+	}
+
+
 	public void evalAssignmentStatement() throws Exception {
 
 		// An assignment has the form NAME := EXPRESSION
+		// or NAME[EXPRESSION] := EXPRESSION
 		String lhs = this.currentToken.value;
 		this.consume(TokenType.NAME);
+		
+		if (this.currentToken.type == TokenType.LEFT_BRACKET) {
+			int[] array = this.lookupArray(lhs);
+			int index = this.evalIndex(lhs, array);
+			this.consume(TokenType.ASSIGN);
+			array[index] = this.evalExpression();
+			return;
+		}
 
 		if (this.currentToken.type != TokenType.ASSIGN) {
 			throw new Exception("Unrecognized assignment symbol.");
@@ -235,7 +395,7 @@ public class Interpreter {
 		this.consume(TokenType.ASSIGN);  // match the :=
 
 		int value = this.evalExpression(); 
-		this.symbols.put(lhs, value); 
+		this.assign(lhs, value); 
 	}
 
 
@@ -246,10 +406,10 @@ public class Interpreter {
 		
 		while (true) {
 			if (this.currentToken.type == TokenType.STRING) {
-				System.out.print(this.currentToken.value);
+				this.out.print(this.currentToken.value);
 				this.consume(TokenType.STRING);
 			} else {
-				System.out.print(this.evalExpression());
+				this.out.print(this.evalExpression());
 			}
 			if (this.currentToken.type == TokenType.NEWLINE) {
 				break;
@@ -257,7 +417,7 @@ public class Interpreter {
 			this.consume(TokenType.COMMA);
 		}
 		
-		System.out.println();
+		this.out.println();
 	}
 
 
@@ -268,11 +428,14 @@ public class Interpreter {
 		String name = this.currentToken.value;
 		this.consume(TokenType.NAME);
 
-		Scanner scan = new Scanner(System.in);
-		System.out.print("Enter a value for " + name + ": ");
-		int value = scan.nextInt();
+		// One Scanner for the whole run, so buffered input isn't lost
+		if (this.input == null) {
+			this.input = new Scanner(System.in);
+		}
+		this.out.print("Enter a value for " + name + ": ");
+		int value = this.input.nextInt();
 
-		this.symbols.put(name, value);
+		this.assign(name, value);
 	}
 	
 	
@@ -280,13 +443,13 @@ public class Interpreter {
 		// Evaluate if statements, 1 for true and 0 for false
 		// if --> variables/condition --> colon
 		this.consume(TokenType.IF);
-		int cond = this.evalConditional();
+		boolean cond = this.evalConditional();
 		if (this.currentToken.type != TokenType.COLON)
 			throw new Exception("Missing COLON after condition.");
 		else
 			this.consume(TokenType.COLON);
 		
-		if (cond == 1) {
+		if (cond) {
 			while (true) {
 				if (this.currentToken.type == TokenType.ELSE) {
 					while (true) {
@@ -331,27 +494,40 @@ public class Interpreter {
 	public void evalWhileStatement() throws Exception {
 		// Evaluate while statements
 		int reset = this.pc;
+		if (this.optimizeLoops) {
+			this.loops.enterLoop(reset);
+		}
+		try {
+			this.evalWhileLoop(reset);
+		} finally {
+			if (this.optimizeLoops) {
+				this.loops.exitLoop();
+			}
+		}
+	}
+
+
+	public void evalWhileLoop(int reset) throws Exception {
 		this.consume(TokenType.WHILE);
-		int bool = this.evalConditional();
+		boolean bool = this.evalConditional();
 		if (this.currentToken.type != TokenType.COLON)
 			throw new Exception("Missing COLON after condition.");
 		this.consume(TokenType.COLON);
 		this.consume(TokenType.NEWLINE);
-		while (bool == 1) {
+		while (bool) {
 			while (this.currentToken.type != TokenType.ENDWHILE) {
 				if (this.currentToken.type == TokenType.END)
 					throw new Exception("Missing ENDWHILE.");
 				this.evalStatement();
 				this.consume(TokenType.NEWLINE);
 			}
-			this.pc = reset;
-			this.currentToken = this.program.get(this.pc);
+			this.jump(reset);
 			this.consume(TokenType.WHILE);
 			bool = this.evalConditional();
 			this.consume(TokenType.COLON);
 		}
 		
-		if (bool == 0) {
+		if (!bool) {
 			while (true) {
 				if (this.currentToken.type == TokenType.ENDWHILE) {
 					this.consume(TokenType.ENDWHILE);
@@ -388,39 +564,155 @@ public class Interpreter {
 	
 	
 	public void evalCallStatement() throws Exception {
+		int line = this.currentToken.line;
 		this.consume(TokenType.CALL);
 		String subName = this.currentToken.value;
 		this.consume(TokenType.NAME);
-		this.pc = this.subs.get(subName);
-		this.currentToken = this.program.get(this.pc);				// currentToken == SUB
+		int returnPc = this.pc;
+		
+		long startNanos = System.nanoTime();
+		EngineEvents.SubroutineCall event = null;
+		if (EngineEvents.enabled) {
+			event = new EngineEvents.SubroutineCall();
+			event.begin();
+		}
+		try {
+			if (this.memo.enabled(subName) && this.analysis.summary(subName).isPure()) {
+				this.evalMemoizedCall(subName, this.analysis.summary(subName), returnPc);
+			} else {
+				this.evalSubBody(subName, returnPc);
+			}
+		} finally {
+			this.calls++;
+			EngineMetrics.global.recordCall(subName, System.nanoTime() - startNanos);
+			if (event != null && event.shouldCommit()) {
+				event.sub = subName;
+				event.line = line;
+				event.commit();
+			}
+		}
+	}
+	
+	
+	public void evalInlinedCall() throws Exception {
+		// The copied body follows, so only the call itself is recorded
+		String subName = this.currentToken.value;
+		int line = this.currentToken.line;
+		this.consume(TokenType.INLINED_CALL);
+		
+		this.calls++;
+		EngineMetrics.global.recordCall(subName, 0);
+		if (EngineEvents.enabled) {
+			EngineEvents.SubroutineCall event = new EngineEvents.SubroutineCall();
+			if (event.shouldCommit()) {
+				event.sub = subName;
+				event.line = line;
+				event.commit();
+			}
+		}
+	}
+	
+	
+	public void evalSubBody(String subName, int returnPc) throws Exception {
+		this.jump(this.subs.get(subName));				// currentToken == SUB
 		while (this.currentToken.type != TokenType.RETURN) {
 			this.evalStatement();
 			if (this.currentToken.type == TokenType.COMMENT) this.consume(TokenType.COMMENT);
 			if (this.currentToken.type == TokenType.NEWLINE) this.consume(TokenType.NEWLINE);
 		}
-		while (true) {
-			if (this.currentToken.value == subName) {
-				this.consume(TokenType.NAME);		// consume name of subroutine
-				break;
+		this.jump(returnPc);			// continue after the name of the subroutine
+	}
+	
+	
+	public void evalMemoizedCall(String subName, SubSummary summary, int returnPc) throws Exception {
+		// A pure sub's effect depends only on the variables it reads, so a
+		// call with the same values can replay the assignments of an earlier one
+		int[] values = new int[summary.reads.size()];
+		int i = 0;
+		for (String name : summary.reads) {
+			Integer value = this.symbols.get(name);
+			if (value == null) {
+				// Let the sub report the missing variable itself
+				this.evalSubBody(subName, returnPc);
+				return;
 			}
-			this.consume(this.currentToken.type);
+			values[i++] = value;
+		}
+		
+		SubroutineCache.Key key = new SubroutineCache.Key(subName, values);
+		SubroutineCache.Entry entry = this.memo.get(key);
+		
+		if (entry != null) {
+			for (i = 0; i < entry.names.length; i++) {
+				this.assign(entry.names[i], entry.values[i]);
+			}
+			this.jump(returnPc);
+			return;
 		}
+		
+		// Record exactly what this call assigns. Assignments that did not
+		// happen must not be replayed, since the caller's values stand then.
+		LinkedHashSet<String> outer = this.writeLog;
+		this.writeLog = new LinkedHashSet<String>();
+		LinkedHashSet<String> written;
+		try {
+			this.evalSubBody(subName, returnPc);
+		} finally {
+			written = this.writeLog;
+			this.writeLog = outer;
+			if (outer != null) {
+				outer.addAll(written);
+			}
+		}
+		
+		String[] names = written.toArray(new String[0]);
+		int[] results = new int[names.length];
+		for (i = 0; i < names.length; i++) {
+			results[i] = this.symbols.get(names[i]);
+		}
+		this.memo.put(key, new SubroutineCache.Entry(names, results));
 	}
 	
 	
 	public void evalForStatement() throws Exception {
+		int start = this.pc;
 		this.consume(TokenType.FOR);
 		String var = this.currentToken.value;
 		this.consume(TokenType.NAME);
 		this.consume(TokenType.ASSIGN);
 		int val = this.evalExpression();
-		this.symbols.put(var, val);			// put var i and start val into symbols
+		this.assign(var, val);			// put var i and start val into symbols
 		this.consume(this.currentToken.type);		// consume 'to' in for statement
-		this.symbols.put(var + "*", this.evalExpression());		// condition for end is variableName*
+		this.assign(var + "*", this.evalExpression());		// condition for end is variableName*
 		this.consume(TokenType.COLON);
 		this.consume(TokenType.NEWLINE);
 		int reset = this.pc;
 		
+		// Loops with enough iterations that provably don't depend on each
+		// other are split across the fork-join pool. Not under a statement
+		// limit, which must stop the run at the same statement as it would
+		// sequentially.
+		long iterations = (long) this.symbols.get(var + "*") - val + 1;
+		if (this.parallelThreshold > 0 && iterations >= this.parallelThreshold && this.maxStatements == 0
+				&& ParallelFor.pool.getParallelism() > 1 && this.analysis.loop(start).independent) {
+			new ParallelFor(this, this.analysis.loop(start), var, reset).run(val, this.symbols.get(var + "*"));
+			return;
+		}
+		
+		if (this.optimizeLoops) {
+			this.loops.enterLoop(start);
+		}
+		try {
+			this.evalForLoop(var, reset);
+		} finally {
+			if (this.optimizeLoops) {
+				this.loops.exitLoop();
+			}
+		}
+	}
+
+
+	public void evalForLoop(String var, int reset) throws Exception {
 		while (true) {
 			if (this.currentToken.type == TokenType.ENDFOR
 					&& this.symbols.get(var) >= this.symbols.get(var + "*")) {
@@ -435,9 +727,8 @@ public class Interpreter {
 					this.consume(this.currentToken.type);
 				}
 			} else if (this.currentToken.type == TokenType.ENDFOR) {
-				this.symbols.put(var, this.symbols.get(var) + 1);
-				this.pc = reset;
-				this.currentToken = this.program.get(this.pc);
+				this.assign(var, this.symbols.get(var) + 1);
+				this.jump(reset);
 			} else if (this.currentToken.type == TokenType.END) {
 				throw new Exception("Missing ENDFOR.");
 			} else {				
@@ -452,6 +743,13 @@ public class Interpreter {
 	public void evalStatement() throws Exception {
 		// There are different types of statements: select the 
 		// appropriate case based on the currentToken
+		this.statements++;
+		if (this.maxStatements > 0 && this.statements > this.maxStatements) {
+			throw new Exception("Statement limit of " + this.maxStatements + " exceeded.");
+		}
+		if (this.deadline != 0 && (this.statements & 1023) == 0 && System.nanoTime() - this.deadline > 0) {
+			throw new Exception("Time limit exceeded.");
+		}
 		switch(this.currentToken.type) {
 
 		// Add new cases here for each new statement type:
@@ -459,6 +757,10 @@ public class Interpreter {
 		case CALL:
 			this.evalCallStatement();
 			break;
+
+		case INLINED_CALL:
+			this.evalInlinedCall();
+			break;
 			
 		case FOR:
 			this.evalForStatement();
@@ -489,6 +791,10 @@ public class Interpreter {
 		case SUB:
 			this.evalSubRoutine();
 			break;
+			
+		case VAR:
+			this.evalVarStatement();
+			break;
 		
 		case WHILE:
 			this.evalWhileStatement();
@@ -554,11 +860,59 @@ public class Interpreter {
 	}
 
 
+	public void run() throws Exception {
+		// Runs the whole program, reporting it to EngineMetrics and JFR
+		EngineEvents.Run event = null;
+		if (EngineEvents.enabled) {
+			event = new EngineEvents.Run();
+			event.begin();
+		}
+		
+		PrintStream original = this.out;
+		EngineMetrics.CountingStream counter = new EngineMetrics.CountingStream(original);
+		this.out = new PrintStream(counter, true);
+		Exception error = null;
+		
+		try {
+			for (String message : this.diagnostics) {
+				this.out.println(message);
+			}
+			this.evalProgram();
+		} catch (Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			this.out.flush();
+			this.out = original;
+			EngineMetrics.global.recordRun(this.statements, counter.count, error != null);
+			EngineMetrics.global.recordMemo(this.memo.hits(), this.memo.misses());
+			
+			if (event != null && event.shouldCommit()) {
+				event.file = this.filename;
+				event.statements = this.statements;
+				event.calls = this.calls;
+				event.outputBytes = counter.count;
+				event.memoHits = this.memo.hits();
+				event.memoMisses = this.memo.misses();
+				if (error != null) {
+					event.error = error.toString();
+					event.line = this.currentToken.line;
+				}
+				event.commit();
+			}
+		}
+	}
+
+
 	public static void main(String[] args) {
 
 		try {
-			Interpreter interpreter = new Interpreter("Test/Extra/ListAllPrimes.a");
-			interpreter.evalProgram();  // Start with evalProgram, which you'll need to write
+			String filename = args.length > 0 ? args[0] : "Test/Extra/ListAllPrimes.a";
+			if (Boolean.getBoolean("interpreter.jmx")) {
+				EngineMetrics.register();
+			}
+			Interpreter interpreter = new Interpreter(filename);
+			interpreter.run();  // evalProgram, reported to EngineMetrics and JFR
 		} catch (Exception e) {
 			System.out.println(e);
 		}
@@ -1,7 +1,11 @@
+import java.io.BufferedReader;
 import java.io.PushbackReader;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 
 public class Lexer {
   
@@ -9,83 +13,163 @@ public class Lexer {
   PushbackReader reader = null;
   int lineNumber;
 
+  // Cursor state describing the most recent token returned by advance().
+  // None of it is allocated per token, so scanning tools can walk a whole
+  // file without producing garbage.
+  int offset;              // Characters consumed from the reader so far
+  int tokenStart;
+  int tokenEnd;
+  int tokenLine;
+  int tokenNumber;
+
+  // Scratch buffer reused for NAME and STRING text
+  StringBuilder scratch = new StringBuilder();
+
+  // Error messages for characters that could not be lexed. They are kept
+  // rather than printed, so whoever runs the program can report them on
+  // its own output.
+  ArrayList<String> diagnostics = new ArrayList<String>();
+
+  // Reported to EngineMetrics and JFR once the end of the file is reached
+  String filename;
+  long tokenCount;
+  long startNanos;
+  boolean finished;
+  EngineEvents.Lex event;
+
   
   public Lexer(String filename) throws FileNotFoundException {
+    this(new FileReader(filename), filename);
+  }
+
+
+  // Lexes source from any Reader, such as a StringReader; the name is
+  // only used for reporting
+  public Lexer(Reader source, String filename) {
     
-    // Create a PushbackReader that can accept up to 1 pushbacks
-    this.reader = new PushbackReader(new FileReader(filename), 1);
+    // Create a PushbackReader that can accept up to 1 pushbacks. Reading
+    // an unbuffered Reader one character at a time allocates on every
+    // read, so files are buffered first.
+    if (!(source instanceof BufferedReader) && !(source instanceof StringReader)) {
+      source = new BufferedReader(source);
+    }
+    this.reader = new PushbackReader(source, 1);
     lineNumber = 1;
+    offset = 0;
+
+    this.filename = filename;
+    this.tokenCount = 0;
+    this.startNanos = System.nanoTime();
+    this.finished = false;
+    this.event = null;
+    if (EngineEvents.enabled) {
+      this.event = new EngineEvents.Lex();
+      this.event.begin();
+    }
+  }
+
+
+  int read() throws IOException {
+    int c = this.reader.read();
+
+    // The 65535 left behind by unread(-1) was never counted, see scan()
+    if (c != -1 && c != 65535) {
+      offset++;
+    }
+    return c;
   }
   
   
-  public Token analyzeIdentifier() throws IOException {
+  void unread(int c) throws IOException {
+    if (c != -1) {
+      offset--;
+    }
+    this.reader.unread(c);
+  }
+
     
-    // Collect characters in a StringBuilder
-    StringBuilder identifier = new StringBuilder();
+  // Case-insensitive comparison of the scratch buffer against a keyword,
+  // done in place so that keywords never become Strings
+  boolean scratchMatches(String keyword) {
+    if (this.scratch.length() != keyword.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < keyword.length(); i++) {
+      if (Character.toLowerCase(this.scratch.charAt(i)) != keyword.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  public TokenType analyzeIdentifier() throws IOException {
+
+    // Collect characters in the scratch buffer
+    this.scratch.setLength(0);
     
     while (true) {
-      int c = this.reader.read();
+      int c = this.read();
       
       if (!Character.isLetter(c) && !Character.isDigit(c) && c != '_') {
-        reader.unread(c);
+        this.unread(c);
         break;
       } else {
-        identifier.append((char) c);
+        this.scratch.append((char) c);
       }
     }
     
-    String identString = identifier.toString();
-    
     // Check if the name's value is a keyword
-    if (identString.equalsIgnoreCase("if")) {
-     return new Token(TokenType.IF); 
-    } else if (identString.equalsIgnoreCase("while")) {
-     return new Token(TokenType.WHILE); 
-    } else if (identString.equalsIgnoreCase("then")) {
-     return new Token(TokenType.THEN); 
-    } else if (identString.equalsIgnoreCase("do")) {
-     return new Token(TokenType.DO); 
-    } else if (identString.equalsIgnoreCase("and")) {
-    	return new Token(TokenType.AND);
-    } else if (identString.equalsIgnoreCase("var")) {
-    	return new Token(TokenType.VAR);
-    } else if (identString.equalsIgnoreCase("print")) {
-    	return new Token(TokenType.PRINT);
-    } else if (identString.equalsIgnoreCase("endif")) {
-    	return new Token(TokenType.ENDIF);
-    } else if (identString.equalsIgnoreCase("endsub")) {
-    	return new Token(TokenType.ENDSUB);
-    } else if (identString.equalsIgnoreCase("endwhile")) {
-    	return new Token(TokenType.ENDWHILE);
-    } else if (identString.equalsIgnoreCase("input")) {
-    	return new Token(TokenType.INPUT);
-    } else if (identString.equalsIgnoreCase("sub")) {
-    	return new Token(TokenType.SUB);
-    } else if (identString.equalsIgnoreCase("return")) {
-    	return new Token(TokenType.RETURN);
-    } else if (identString.equalsIgnoreCase("not")) {
-    	return new Token(TokenType.NOT);
-    } else if (identString.equalsIgnoreCase("or")) {
-    	return new Token(TokenType.OR);
-    } else if (identString.equalsIgnoreCase("call")) {
-    	return new Token(TokenType.CALL);
-    } else if (identString.equalsIgnoreCase("end")) {
-    	return new Token(TokenType.END);
-    } else if (identString.equalsIgnoreCase("program")) {
-    	return new Token(TokenType.PROGRAM);
-    } else if (identString.equalsIgnoreCase("for")) {
-    	return new Token(TokenType.FOR);
-    } else if (identString.equalsIgnoreCase("endfor")) {
-    	return new Token(TokenType.ENDFOR);
-    } else if (identString.equalsIgnoreCase("else")) {
-    	return new Token(TokenType.ELSE);
+    if (scratchMatches("if")) {
+     return TokenType.IF;
+    } else if (scratchMatches("while")) {
+     return TokenType.WHILE;
+    } else if (scratchMatches("then")) {
+     return TokenType.THEN;
+    } else if (scratchMatches("do")) {
+     return TokenType.DO;
+    } else if (scratchMatches("and")) {
+    	return TokenType.AND;
+    } else if (scratchMatches("var")) {
+    	return TokenType.VAR;
+    } else if (scratchMatches("print")) {
+    	return TokenType.PRINT;
+    } else if (scratchMatches("endif")) {
+    	return TokenType.ENDIF;
+    } else if (scratchMatches("endsub")) {
+    	return TokenType.ENDSUB;
+    } else if (scratchMatches("endwhile")) {
+    	return TokenType.ENDWHILE;
+    } else if (scratchMatches("input")) {
+    	return TokenType.INPUT;
+    } else if (scratchMatches("sub")) {
+    	return TokenType.SUB;
+    } else if (scratchMatches("return")) {
+    	return TokenType.RETURN;
+    } else if (scratchMatches("not")) {
+    	return TokenType.NOT;
+    } else if (scratchMatches("or")) {
+    	return TokenType.OR;
+    } else if (scratchMatches("call")) {
+    	return TokenType.CALL;
+    } else if (scratchMatches("end")) {
+    	return TokenType.END;
+    } else if (scratchMatches("program")) {
+    	return TokenType.PROGRAM;
+    } else if (scratchMatches("for")) {
+    	return TokenType.FOR;
+    } else if (scratchMatches("endfor")) {
+    	return TokenType.ENDFOR;
+    } else if (scratchMatches("else")) {
+    	return TokenType.ELSE;
     } else {
-       return new Token(TokenType.NAME, identString);
+       return TokenType.NAME;
     }
   }
   
   
-  public Token analyzeNumber() throws IOException {
+  public TokenType analyzeNumber() throws IOException {
     
     // Basic strategy: read characters in a loop and add them to
     // the value of the number we're building until we read something
@@ -94,96 +178,158 @@ public class Lexer {
     int value = 0;
     
     while (true) {
-      int c = this.reader.read();
+      int c = this.read();
       
       if (Character.isDigit(c)) {
         value = value * 10 + Character.getNumericValue(c);
       } else {
-        this.reader.unread(c);
+        this.unread(c);
         break;
       }
     }
     
-    return new Token(TokenType.NUMBER, String.valueOf(value));
+    this.tokenNumber = value;
+    return TokenType.NUMBER;
   }
   
   
-  public Token nextToken() throws Exception {
+  // Cursor API: scans the next token and returns its type. Details of the
+  // token are available from the accessors below until the next call.
+  public TokenType advance() throws IOException {
+    TokenType type = this.scan();
+    this.tokenEnd = this.offset;
+    this.tokenCount++;
+
+    if (type == TokenType.EOF && !this.finished) {
+      this.finish();
+    }
+    return type;
+  }
+
+
+  void finish() {
+    EngineMetrics.global.recordLex(this.tokenCount, System.nanoTime() - this.startNanos);
+
+    if (this.event != null && this.event.shouldCommit()) {
+      this.event.file = this.filename;
+      this.event.tokens = this.tokenCount;
+      this.event.characters = this.offset;
+      this.event.commit();
+    }
+    this.event = null;
+    this.finished = true;
+  }
+
+
+  // Offset of the first character of the current token
+  public int tokenStart() {
+    return this.tokenStart;
+  }
+
+
+  // Offset just past the last character of the current token
+  public int tokenEnd() {
+    return this.tokenEnd;
+  }
+
+
+  // Line on which the current token starts
+  public int tokenLine() {
+    return this.tokenLine;
+  }
+
+
+  // Value of the current NUMBER token
+  public int tokenNumber() {
+    return this.tokenNumber;
+  }
+
+
+  // Text of the current NAME or STRING token. The buffer is overwritten
+  // by the next call to advance(), so copy it if it has to be kept.
+  public CharSequence tokenText() {
+    return this.scratch;
+  }
+
+
+  TokenType scan() throws IOException {
     
     while (true) {
     
-      int c = reader.read();
+      this.tokenStart = this.offset;
+      this.tokenLine = this.lineNumber;
+      int c = this.read();
       
       // End-of-file
       if (c == -1) {
-        return new Token(TokenType.EOF);
+        return TokenType.EOF;
       }
       
       // Newline
       if (c == '\n') {
     	  lineNumber++;
-    	  return new Token(TokenType.NEWLINE);
+    	  return TokenType.NEWLINE;
       }
       
       // A single = is an EQUAL token
       else if (c == '=') {
-        return new Token(TokenType.EQUAL); 
+        return TokenType.EQUAL;
       }
       
       // Two tokens start with >
       else if (c == '>') {
-        int next = this.reader.read();
+        int next = this.read();
         
         if (next == '=') {
-          return new Token(TokenType.GREATER_THAN_OR_EQUAL); 
+          return TokenType.GREATER_THAN_OR_EQUAL;
         } else {
-          this.reader.unread(next);
-          return new Token(TokenType.GREATER_THAN);
+          this.unread(next);
+          return TokenType.GREATER_THAN;
         }
       }
       
       // Three tokens start with <
       else if (c == '<') {
-        int next = this.reader.read();
+        int next = this.read();
         
         if (next == '=') {
-          return new Token(TokenType.LESS_THAN_OR_EQUAL); 
+          return TokenType.LESS_THAN_OR_EQUAL;
         } else if (next == '>') {
-          return new Token(TokenType.NOT_EQUAL);
+          return TokenType.NOT_EQUAL;
         } else {
-          this.reader.unread(next);
-          return new Token(TokenType.LESS_THAN);
+          this.unread(next);
+          return TokenType.LESS_THAN;
         }
       }
       
       // Basic Arithmetic
       else if (c == '+') {
-        return new Token(TokenType.PLUS); 
+        return TokenType.PLUS;
       }
       
       else if (c == '-') {
-        return new Token(TokenType.MINUS);
+        return TokenType.MINUS;
       }
       
       else if (c == '*') {
-        return new Token(TokenType.TIMES); 
+        return TokenType.TIMES;
       }
       
       else if (c == '/') {
-        return new Token(TokenType.DIVIDE); 
+        return TokenType.DIVIDE;
       }
       
       // First character is a letter
       else if (Character.isLetter(c)) {
         
         // Push it back on the stack, then call analyzeIdentifier
-        reader.unread(c);
+        this.unread(c);
         return this.analyzeIdentifier();
       }
       
       // First character is a digit
       else if (Character.isDigit(c)) {
-        reader.unread(c);
+        this.unread(c);
         return this.analyzeNumber();
       }
       
@@ -200,82 +346,107 @@ public class Lexer {
       
       // Two tokens that start with :
       else if (c == ':') {
-    	  int next = this.reader.read();
+    	  int next = this.read();
     	  if (next == '=') {
-    		  return new Token(TokenType.ASSIGN);
+    		  return TokenType.ASSIGN;
     	  } else {
-    		  this.reader.unread(next);
-    		  return new Token(TokenType.COLON);
+    		  this.unread(next);
+    		  return TokenType.COLON;
     	  }
       }
       
       // A single , token is a COMMA
       else if (c == ',') {
-    	  return new Token(TokenType.COMMA);
+    	  return TokenType.COMMA;
       }
       
       // Comments, checks for pair of curly braces
       else if (c == '{') {
     	  while (true) {
-    		  int next = this.reader.read();
+    		  int next = this.read();
     		  // Increments lineNumber within while loop
     		  if (next == '\n') lineNumber++;
     		  if (next == '}') {
-    			  return new Token(TokenType.COMMENT);
+    			  return TokenType.COMMENT;
     		  } else if (next == -1) {
     			  // Reaches EOF and doesn't find }
-    			  System.out.println("ERROR: Missing }" + ", Line: " + lineNumber);
-    	    	  return new Token(TokenType.UNKNOWN);
+    			  this.diagnostics.add("ERROR: Missing }" + ", Line: " + lineNumber);
+    	    	  return TokenType.UNKNOWN;
     		  }
     	  }
       }
       
       // String in double quotes for fancy printing
       else if (c == '"') {
-    	// Collect characters in a StringBuilder
-    	    StringBuilder identifier = new StringBuilder();
+    	// Collect characters in the scratch buffer
+    	  this.scratch.setLength(0);
     	  
     	  while (true) {
-    		  int next = this.reader.read();
-    		  if (next != '"') identifier.append((char) next);
+    		  int next = this.read();
+    		  if (next != '"') this.scratch.append((char) next);
     		  
     		  // Increments lineNumber within while loop
     		  if (next == '\n') lineNumber++;
     		  if (next == '"') {
-    			  return new Token(TokenType.STRING, identifier.toString());
+    			  return TokenType.STRING;
     		  } else if (next == -1) {
     			  // Reaches EOF and doesn't find closing "
-    			  System.out.println("ERROR: Missing \"" + ", Line: " + lineNumber);
-    	    	  return new Token(TokenType.UNKNOWN);
+    			  this.diagnostics.add("ERROR: Missing \"" + ", Line: " + lineNumber);
+    	    	  return TokenType.UNKNOWN;
     		  }
     	  }
       }
       
       // Modulus operator
       else if (c == '%') {
-    	  return new Token(TokenType.MOD);
+    	  return TokenType.MOD;
       }
       
       // Left and right Parentheses
       else if (c == '(') {
-    	  return new Token(TokenType.LEFT_PAREN);
+    	  return TokenType.LEFT_PAREN;
       }
       
       else if (c == ')') {
-    	  return new Token(TokenType.RIGHT_PAREN);
+    	  return TokenType.RIGHT_PAREN;
+      }
+      
+      // Brackets for array sizes and indexes
+      else if (c == '[') {
+    	  return TokenType.LEFT_BRACKET;
+      }
+      
+      else if (c == ']') {
+    	  return TokenType.RIGHT_BRACKET;
       }
       
       // Add an error case that matches any other non-whitespace
       // character. Print an error message with the unmatched character
       // and the line number, then return an UNKNOWN token.
       else if (c != ' ') {
-    	  System.out.println("\nERROR!: " + (char) c + ", Line: " + lineNumber);
-    	  return new Token(TokenType.UNKNOWN);
+    	  this.diagnostics.add("\nERROR!: " + (char) c + ", Line: " + lineNumber);
+    	  return TokenType.UNKNOWN;
       }
     }
   }
   
   
+  public Token nextToken() throws Exception {
+
+    // The Token API is a thin layer over the cursor: only NAME, NUMBER
+    // and STRING tokens need to copy anything out of the lexer
+    TokenType type = this.advance();
+
+    if (type == TokenType.NAME || type == TokenType.STRING) {
+      return new Token(type, this.scratch.toString(), this.tokenLine);
+    } else if (type == TokenType.NUMBER) {
+      return new Token(type, String.valueOf(this.tokenNumber), this.tokenLine);
+    } else {
+      return new Token(type, null, this.tokenLine);
+    }
+  }
+
+
   public static void main(String[] args) {
     
     try {
@@ -292,6 +463,10 @@ public class Lexer {
         }
       } while (t.type != TokenType.EOF && t.type != TokenType.UNKNOWN);
       
+      for (String message : lex.diagnostics) {
+        System.out.println(message);
+      }
+      
     } catch (Exception e) {
       e.printStackTrace();
     }
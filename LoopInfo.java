@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class LoopInfo {
+
+	// Static def-use facts for one while or for loop
+	int start;
+	int end;
+	HashSet<String> defs;               // null if the loop calls an unknown sub
+	HashMap<String, Integer> steps;     // induction variables and their step
+	ExprInfo[] exprs;                   // expressions seen so far, by start pc - start
+	ExprInfo[] terms;                   // terms of + and - seen so far, the same way
+	boolean independent;                // for loop whose iterations may run in parallel
+
+
+	LoopInfo(ProgramAnalysis analysis, int start) {
+		ArrayList<Token> program = analysis.program;
+
+		this.start = start;
+		this.end = analysis.blockEnd(start);
+		this.defs = analysis.writes(start, this.end);
+		this.steps = new HashMap<String, Integer>();
+		// Parallel workers share these; a slot may be classified twice,
+		// with the same result, and ExprInfo is immutable
+		this.exprs = new ExprInfo[this.end - start];
+		this.terms = new ExprInfo[this.end - start];
+		this.independent = false;
+
+		if (this.defs == null) {
+			return;
+		}
+
+		if (program.get(start).type == TokenType.FOR) {
+			this.independent = this.checkIndependent(analysis, program);
+		}
+
+		// Count the assignments to each variable. A variable assigned exactly
+		// once, by "v := v + NUMBER" or "v := v - NUMBER", is an induction
+		// variable. The loop variable of a for loop is one with step 1.
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+
+		for (int i = start; i < this.end; i++) {
+			Token t = program.get(i);
+
+			if (t.type == TokenType.NAME && program.get(i + 1).type == TokenType.ASSIGN) {
+				counts.merge(t.value, 1, Integer::sum);
+
+				if (program.get(start).type == TokenType.FOR && i == start + 1) {
+					this.steps.put(t.value, 1);
+				} else if (program.get(i + 2).type == TokenType.NAME
+						&& program.get(i + 2).value.equals(t.value)
+						&& (program.get(i + 3).type == TokenType.PLUS || program.get(i + 3).type == TokenType.MINUS)
+						&& program.get(i + 4).type == TokenType.NUMBER
+						&& (program.get(i + 5).type == TokenType.NEWLINE || program.get(i + 5).type == TokenType.COMMENT)) {
+					int step = Integer.parseInt(program.get(i + 4).value);
+					this.steps.put(t.value, program.get(i + 3).type == TokenType.PLUS ? step : -step);
+				}
+			} else if (t.type == TokenType.INPUT && program.get(i + 1).type == TokenType.NAME) {
+				counts.merge(program.get(i + 1).value, 2, Integer::sum);
+			} else if (t.type == TokenType.CALL && program.get(i + 1).type == TokenType.NAME) {
+				for (String name : analysis.subWrites(program.get(i + 1).value)) {
+					counts.merge(name, 2, Integer::sum);
+				}
+			}
+		}
+
+		this.steps.keySet().removeIf(name -> counts.get(name) != 1);
+	}
+
+
+	boolean checkIndependent(ProgramAnalysis analysis, ArrayList<Token> program) {
+		// Iterations of a for loop are independent when no iteration can read
+		// a value written by another: every variable the body reads before
+		// assigning it must not be assigned anywhere in the body. The loop
+		// variable is the exception, as long as the body leaves it alone.
+		// Arrays may be read but not stored into, since workers share them.
+		String var = program.get(this.start + 1).value;
+		int bodyStart = this.start;
+		while (program.get(bodyStart).type != TokenType.COLON) {
+			bodyStart++;
+		}
+
+		SubSummary body = analysis.summarize(bodyStart + 1, this.end);
+
+		if (body.effects || body.arrayStores || body.writes.contains(var)) {
+			return false;
+		}
+
+		for (String read : body.reads) {
+			if (body.writes.contains(read)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	boolean contains(int pc) {
+		return pc >= this.start && pc < this.end;
+	}
+
+
+	ExprInfo classify(ArrayList<Token> program, int from, int to) {
+		// Single tokens are cheaper to evaluate than to look up
+		if (this.defs == null || to - from < 2) {
+			return new ExprInfo(ExprInfo.NONE, to);
+		}
+
+		boolean invariant = true;
+		for (int i = from; i < to; i++) {
+			Token t = program.get(i);
+			if (t.type == TokenType.NAME && this.defs.contains(t.value)) {
+				invariant = false;
+				break;
+			}
+		}
+
+		if (invariant) {
+			return new ExprInfo(ExprInfo.INVARIANT, to);
+		}
+
+		// "iv * k" or "k * iv", where k is a number or an invariant variable
+		if (to - from == 3 && program.get(from + 1).type == TokenType.TIMES) {
+			Token lhs = program.get(from);
+			Token rhs = program.get(from + 2);
+
+			if (this.isInduction(lhs) && this.isInvariant(rhs)) {
+				return new ExprInfo(ExprInfo.INDUCTION, to, lhs.value, this.steps.get(lhs.value), rhs);
+			} else if (this.isInduction(rhs) && this.isInvariant(lhs)) {
+				return new ExprInfo(ExprInfo.INDUCTION, to, rhs.value, this.steps.get(rhs.value), lhs);
+			}
+		}
+
+		return new ExprInfo(ExprInfo.NONE, to);
+	}
+
+
+	boolean isInduction(Token t) {
+		return t.type == TokenType.NAME && this.steps.containsKey(t.value);
+	}
+
+
+	boolean isInvariant(Token t) {
+		return t.type == TokenType.NUMBER || (t.type == TokenType.NAME && !this.defs.contains(t.value));
+	}
+}
@@ -0,0 +1,161 @@
+class LoopFrame {
+
+	// Per-activation state: the values hoisted out of this run of the loop.
+	// Slots are indexed like LoopInfo.exprs and LoopInfo.terms, and hold
+	// {value, iv, increment}; they are allocated on the first hoisted value.
+	LoopInfo info;
+	LoopFrame parent;
+	int[] exprState;
+	boolean[] exprSet;
+	int[] termState;
+	boolean[] termSet;
+
+
+	LoopFrame(LoopInfo info, LoopFrame parent) {
+		this.info = info;
+		this.parent = parent;
+	}
+}
+
+
+public class LoopOptimizer {
+
+	// Loop-invariant code motion and strength reduction for while and for
+	// loops. The interpreter walks tokens, so instead of rewriting the loop
+	// the optimizer remembers each expression's extent and value: invariant
+	// expressions are computed on their first evaluation in a run of the loop
+	// (the preheader, in effect) and skipped afterwards, and "iv * k" is
+	// advanced by adding step * k when the induction variable moves by one step.
+	// The same is done for each term of a sum, so "i * 4 + 1" reduces its
+	// "i * 4" even though the whole expression is neither.
+	//
+	// Off by default: on the MacroBenchmark loops it has not yet shown a
+	// gain over plain evaluation. Turn it on with -Dinterpreter.optimizeLoops=true.
+	Interpreter interpreter;
+	LoopFrame top;
+
+
+	public LoopOptimizer(Interpreter interpreter) {
+		this.interpreter = interpreter;
+		this.top = null;
+	}
+
+
+	public void enterLoop(int start) {
+		this.top = new LoopFrame(this.interpreter.analysis.loop(start), this.top);
+	}
+
+
+	public void exitLoop() {
+		this.top = this.top.parent;
+	}
+
+
+	public boolean active() {
+		return this.top != null;
+	}
+
+
+	public int evalExpression() throws Exception {
+		LoopFrame frame = this.top;
+		int slot = this.interpreter.pc - frame.info.start;
+
+		// Expressions in subroutines called from the loop, and those known to
+		// gain nothing, are evaluated directly
+		if (slot < 0 || slot >= frame.info.exprs.length) {
+			return this.interpreter.evalArithmetic();
+		}
+		ExprInfo expr = frame.info.exprs[slot];
+		if (expr != null && expr.kind == ExprInfo.NONE) {
+			return this.interpreter.evalArithmetic();
+		}
+
+		if (frame.exprState == null) {
+			frame.exprState = new int[3 * frame.info.exprs.length];
+			frame.exprSet = new boolean[frame.info.exprs.length];
+		}
+		return this.eval(frame.info.exprs, frame.exprState, frame.exprSet, slot, expr, false);
+	}
+
+
+	public int evalTerm() throws Exception {
+		LoopFrame frame = this.top;
+		int slot = this.interpreter.pc - frame.info.start;
+
+		if (slot < 0 || slot >= frame.info.terms.length) {
+			return this.interpreter.evalProduct();
+		}
+		ExprInfo expr = frame.info.terms[slot];
+		if (expr != null && expr.kind == ExprInfo.NONE) {
+			return this.interpreter.evalProduct();
+		}
+
+		if (frame.termState == null) {
+			frame.termState = new int[3 * frame.info.terms.length];
+			frame.termSet = new boolean[frame.info.terms.length];
+		}
+		return this.eval(frame.info.terms, frame.termState, frame.termSet, slot, expr, true);
+	}
+
+
+	int evaluate(boolean term) throws Exception {
+		return term ? this.interpreter.evalProduct() : this.interpreter.evalArithmetic();
+	}
+
+
+	int eval(ExprInfo[] known, int[] state, boolean[] set, int slot, ExprInfo expr, boolean term) throws Exception {
+		int start = this.interpreter.pc;
+
+		if (expr == null) {
+			int value = this.evaluate(term);
+			expr = this.top.info.classify(this.interpreter.program, start, this.interpreter.pc);
+			known[slot] = expr;
+
+			if (expr.kind == ExprInfo.INVARIANT) {
+				state[3 * slot] = value;
+				set[slot] = true;
+			}
+			return value;
+		}
+
+		if (expr.kind == ExprInfo.INVARIANT) {
+			if (set[slot]) {
+				this.interpreter.jump(expr.end);
+				return state[3 * slot];
+			}
+			int value = this.evaluate(term);
+			state[3 * slot] = value;
+			set[slot] = true;
+			return value;
+		}
+
+		// INDUCTION
+		Integer iv = this.interpreter.symbols.get(expr.variable);
+
+		if (iv != null && set[slot]) {
+			if (iv == state[3 * slot + 1]) {
+				this.interpreter.jump(expr.end);
+				return state[3 * slot];
+			} else if (iv == state[3 * slot + 1] + expr.step) {
+				state[3 * slot + 1] = iv;
+				state[3 * slot] += state[3 * slot + 2];
+				this.interpreter.jump(expr.end);
+				return state[3 * slot];
+			}
+		}
+
+		// First evaluation in this run, or the variable jumped: compute it
+		// the long way and remember the increment for next time
+		int value = this.evaluate(term);
+		if (iv != null) {
+			int k = expr.multiplier.type == TokenType.NUMBER
+					? Integer.parseInt(expr.multiplier.value)
+					: this.interpreter.symbols.get(expr.multiplier.value);
+			state[3 * slot] = value;
+			state[3 * slot + 1] = iv;
+			state[3 * slot + 2] = expr.step * k;
+			set[slot] = true;
+		}
+		return value;
+	}
+}
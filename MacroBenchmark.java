@@ -0,0 +1,372 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+public class MacroBenchmark {
+
+	// Runs the Workloads suite end to end through Lexer and Interpreter,
+	// checks every program against its expected output, and compares the
+	// measurements with a stored baseline.
+	//
+	//   java MacroBenchmark [--scale N] [--runs N] [--warmup N]
+	//                       [--baseline FILE] [--threshold FRACTION]
+	//                       [--min-millis MS] [--record] [--emit DIR]
+	//
+	// --record writes the measurements as the new baseline. Otherwise the
+	// run fails (exit status 1) when a measurement is more than threshold
+	// (default 0.25, i.e. 25%) above the baseline, when an output is wrong,
+	// or when there is no baseline yet. Baselines depend on the machine, so
+	// none is checked in: record one before comparing. Time differences
+	// under min-millis (default 1) are treated as noise. Times and
+	// allocation are medians over the runs, and peak heap is the maximum.
+	// The baseline also records the scale and the workloads measured, and
+	// a run that doesn't match them, or measures something the baseline
+	// has no value for, fails rather than passing unchecked.
+	int scale = 1;
+	int runs = 5;
+	int warmup = 2;
+	String baseline = "Test/Bench/baseline.properties";
+	double threshold = 0.25;
+	double minMillis = 1.0;
+	boolean record = false;
+	Path dir = null;
+
+
+	static class Result {
+		double lexMillis;
+		long lexAllocatedBytes;
+		double runMillis;
+		long allocatedBytes;
+		long peakHeapBytes;
+	}
+
+
+	public static void main(String[] args) {
+		try {
+			MacroBenchmark bench = new MacroBenchmark();
+			bench.parseArgs(args);
+			System.exit(bench.runAll() ? 0 : 1);
+		} catch (Exception e) {
+			System.out.println(e);
+			System.exit(2);
+		}
+	}
+
+
+	void parseArgs(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--scale")) {
+				this.scale = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--runs")) {
+				this.runs = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--warmup")) {
+				this.warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--baseline")) {
+				this.baseline = args[++i];
+			} else if (args[i].equals("--threshold")) {
+				this.threshold = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--min-millis")) {
+				this.minMillis = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--record")) {
+				this.record = true;
+			} else if (args[i].equals("--emit")) {
+				this.dir = Paths.get(args[++i]);
+			} else {
+				throw new Exception("Unknown option: " + args[i]);
+			}
+		}
+	}
+
+
+	boolean runAll() throws Exception {
+		if (this.dir == null) {
+			this.dir = Files.createTempDirectory("workloads");
+		}
+		Files.createDirectories(this.dir);
+
+		Properties measured = new Properties();
+		StringBuilder suite = new StringBuilder();
+		boolean ok = true;
+
+		for (Workloads.Workload workload : Workloads.suite(this.scale)) {
+			suite.append(suite.length() == 0 ? "" : ",").append(workload.name);
+			Path file = this.dir.resolve(workload.name + ".a");
+			Files.write(file, workload.source.getBytes());
+			Files.write(this.dir.resolve(workload.name + ".expected"), workload.expected.getBytes());
+
+			Result result = this.measure(workload, file.toString());
+			if (result == null) {
+				ok = false;
+				continue;
+			}
+
+			System.out.printf("%-26s lex %9.2f ms %,12d B  run %9.2f ms  alloc %,14d B  peak heap %,14d B%n",
+					workload.name, result.lexMillis, result.lexAllocatedBytes, result.runMillis,
+					result.allocatedBytes, result.peakHeapBytes);
+
+			measured.setProperty(workload.name + ".lexMillis", String.format("%.3f", result.lexMillis));
+			measured.setProperty(workload.name + ".lexAllocatedBytes", Long.toString(result.lexAllocatedBytes));
+			measured.setProperty(workload.name + ".runMillis", String.format("%.3f", result.runMillis));
+			measured.setProperty(workload.name + ".allocatedBytes", Long.toString(result.allocatedBytes));
+			measured.setProperty(workload.name + ".peakHeapBytes", Long.toString(result.peakHeapBytes));
+		}
+
+		if (this.record) {
+			measured.setProperty("scale", Integer.toString(this.scale));
+			measured.setProperty("suite", suite.toString());
+			Path path = Paths.get(this.baseline);
+			if (path.getParent() != null) {
+				Files.createDirectories(path.getParent());
+			}
+			try (FileWriter writer = new FileWriter(this.baseline)) {
+				measured.store(writer, "MacroBenchmark baseline, scale " + this.scale);
+			}
+			System.out.println("Baseline written to " + this.baseline);
+			return ok;
+		}
+
+		return this.compare(measured, suite.toString()) && ok;
+	}
+
+
+	Result measure(Workloads.Workload workload, String file) throws Exception {
+		for (int i = 0; i < this.warmup; i++) {
+			this.lex(file);
+			this.interpret(file);
+		}
+
+		double[] lexMillis = new double[this.runs];
+		double[] lexAllocated = new double[this.runs];
+		double[] runMillis = new double[this.runs];
+		double[] allocated = new double[this.runs];
+		Result result = new Result();
+		HeapPeak heap = new HeapPeak();
+
+		for (int i = 0; i < this.runs; i++) {
+			long before = allocatedBytes();
+			long start = System.nanoTime();
+			this.lex(file);
+			lexMillis[i] = (System.nanoTime() - start) / 1e6;
+			lexAllocated[i] = allocatedBytes() - before;
+
+			System.gc();
+			heap.start();
+			before = allocatedBytes();
+
+			start = System.nanoTime();
+			String output = this.interpret(file);
+			runMillis[i] = (System.nanoTime() - start) / 1e6;
+
+			allocated[i] = allocatedBytes() - before;
+			result.peakHeapBytes = Math.max(result.peakHeapBytes, heap.stop());
+
+			if (!output.equals(workload.expected)) {
+				System.out.println(workload.name + ": output differs from the expected output");
+				return null;
+			}
+		}
+
+		result.lexMillis = median(lexMillis);
+		result.lexAllocatedBytes = (long) median(lexAllocated);
+		result.runMillis = median(runMillis);
+		result.allocatedBytes = (long) median(allocated);
+		heap.close();
+		return result;
+	}
+
+
+	void lex(String file) throws Exception {
+		Lexer lexer = new Lexer(file);
+		while (lexer.advance() != TokenType.EOF) {
+			// Scanning only
+		}
+	}
+
+
+	String interpret(String file) throws Exception {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Interpreter interpreter = new Interpreter(file);
+		interpreter.out = new PrintStream(buffer);
+		interpreter.run();
+		interpreter.out.flush();
+		return buffer.toString();
+	}
+
+
+	boolean compare(Properties measured, String suite) throws Exception {
+		if (!Files.exists(Paths.get(this.baseline))) {
+			System.out.println("No baseline at " + this.baseline + "; run with --record to create one");
+			return false;
+		}
+
+		Properties stored = new Properties();
+		try (FileReader reader = new FileReader(this.baseline)) {
+			stored.load(reader);
+		}
+
+		// Numbers from another scale or suite would compare as regressions
+		// or improvements that aren't there
+		String scale = stored.getProperty("scale");
+		if (scale == null) {
+			System.out.println("Baseline " + this.baseline + " records no scale; record it again");
+			return false;
+		}
+		if (!scale.equals(Integer.toString(this.scale))) {
+			System.out.println("Baseline " + this.baseline + " is for scale " + scale + ", not " + this.scale
+					+ "; record it again or pass --scale " + scale);
+			return false;
+		}
+		if (!suite.equals(stored.getProperty("suite"))) {
+			System.out.println("Baseline " + this.baseline + " measured " + stored.getProperty("suite")
+					+ ", not " + suite + "; record it again");
+			return false;
+		}
+
+		boolean ok = true;
+		for (String key : new TreeSet<String>(measured.stringPropertyNames())) {
+			String before = stored.getProperty(key);
+			if (before == null) {
+				System.out.println("MISSING " + key + ": no baseline value; record the baseline again");
+				ok = false;
+				continue;
+			}
+
+			double was = Double.parseDouble(before);
+			double now = Double.parseDouble(measured.getProperty(key));
+
+			if (key.endsWith("Millis") && now - was < this.minMillis) {
+				continue;
+			}
+
+			if (now > was * (1 + this.threshold)) {
+				System.out.printf("REGRESSION %s: %.3f -> %.3f (%+.1f%%)%n", key, was, now, (now / was - 1) * 100);
+				ok = false;
+			}
+		}
+
+		if (ok) {
+			System.out.println("No regressions beyond " + (int) (this.threshold * 100) + "% of " + this.baseline);
+		}
+		return ok;
+	}
+
+
+	static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+
+	static long allocatedBytes() {
+		// Allocation by this thread only; parallel loop workers aren't counted
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+
+	static class HeapPeak implements NotificationListener {
+
+		// The most heap in use at any one moment. Between collections the
+		// heap only grows, so the peak is either just before a collection,
+		// as the collector reports it, or at the end of the measurement.
+		// Adding up each pool's own peak would not do: the pools peak at
+		// different times.
+		HashSet<String> heapPools;
+		long peak;
+		long notified;
+
+		HeapPeak() {
+			this.heapPools = new HashSet<String>();
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) {
+					this.heapPools.add(pool.getName());
+				}
+			}
+			this.notified = collections();
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				((NotificationEmitter) gc).addNotificationListener(this, null, null);
+			}
+		}
+
+		public synchronized void handleNotification(Notification notification, Object handback) {
+			if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+				return;
+			}
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+					(CompositeData) notification.getUserData());
+
+			long used = 0;
+			for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+				if (this.heapPools.contains(pool.getKey())) {
+					used += pool.getValue().getUsed();
+				}
+			}
+			this.peak = Math.max(this.peak, used);
+			this.notified++;
+			this.notifyAll();
+		}
+
+		synchronized void start() throws InterruptedException {
+			this.catchUp();
+			this.peak = heapUsed();
+		}
+
+		synchronized long stop() throws InterruptedException {
+			long used = heapUsed();
+			this.catchUp();
+			return Math.max(this.peak, used);
+		}
+
+		void close() throws Exception {
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				((NotificationEmitter) gc).removeNotificationListener(this);
+			}
+		}
+
+		void catchUp() throws InterruptedException {
+			// Notifications arrive on another thread; wait for the ones
+			// for collections that have already happened
+			long deadline = System.currentTimeMillis() + 1000;
+			long target = collections();
+			while (this.notified < target && System.currentTimeMillis() < deadline) {
+				this.wait(10);
+			}
+			this.notified = Math.max(this.notified, target);
+		}
+
+		static long collections() {
+			long count = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(0, gc.getCollectionCount());
+			}
+			return count;
+		}
+
+		static long heapUsed() {
+			return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+public class ParallelFor {
+
+	// Runs the iterations of an independent for loop (see
+	// LoopInfo.checkIndependent) on the fork-join pool. The range is cut into
+	// chunks, each run by its own worker interpreter with a private copy of
+	// the variables and a private output buffer. Chunks are merged back in
+	// iteration order, so output and final variable values match a
+	// sequential run.
+	//
+	// Loops only go parallel when the pool has more than one worker. On a
+	// single CPU, run the tests with
+	// -Djava.util.concurrent.ForkJoinPool.common.parallelism=4 so that
+	// Test/Extra/ParallelLoop.a exercises this path.
+	static ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	static class Chunk {
+		Interpreter worker;
+		ByteArrayOutputStream output;
+		Exception error;
+	}
+
+
+	Interpreter interpreter;
+	LoopInfo info;
+	String var;
+	int reset;
+	volatile boolean failed;   // Set when merging reaches a failed chunk, so later ones stop early
+
+
+	public ParallelFor(Interpreter interpreter, LoopInfo info, String var, int reset) {
+		this.interpreter = interpreter;
+		this.info = info;
+		this.var = var;
+		this.reset = reset;
+		this.failed = false;
+	}
+
+
+	public void run(int first, int last) throws Exception {
+		long iterations = (long) last - first + 1;
+		int chunks = (int) Math.min(iterations, pool.getParallelism() * 4L);
+		ArrayList<ForkJoinTask<Chunk>> tasks = new ArrayList<ForkJoinTask<Chunk>>();
+
+		for (int c = 0; c < chunks; c++) {
+			int lo = (int) (first + iterations * c / chunks);
+			int hi = (int) (first + iterations * (c + 1) / chunks - 1);
+
+			// Workers copy the variables here, before anything runs
+			Chunk chunk = new Chunk();
+			chunk.worker = new Interpreter(this.interpreter);
+			tasks.add(pool.submit(() -> this.runChunk(chunk, lo, hi)));
+		}
+
+		for (ForkJoinTask<Chunk> task : tasks) {
+			Chunk chunk = task.join();
+			chunk.output.writeTo(this.interpreter.out);
+			this.interpreter.statements += chunk.worker.statements;
+			this.interpreter.calls += chunk.worker.calls;
+
+			for (String name : chunk.worker.writeLog) {
+				if (!name.equals(this.var)) {
+					this.interpreter.assign(name, chunk.worker.symbols.get(name));
+				}
+			}
+
+			if (chunk.error != null) {
+				this.failed = true;
+				throw chunk.error;
+			}
+		}
+
+		// Leave things as the sequential loop does: the loop variable holds
+		// the last value and the pc is past the ENDFOR
+		this.interpreter.assign(this.var, last);
+		this.interpreter.jump(this.info.end);
+		this.interpreter.consume(TokenType.ENDFOR);
+	}
+
+
+	Chunk runChunk(Chunk chunk, int lo, int hi) {
+		Interpreter worker = chunk.worker;
+		chunk.output = new ByteArrayOutputStream();
+		worker.out = new PrintStream(chunk.output);
+		worker.writeLog = new LinkedHashSet<String>();
+
+		try {
+			if (worker.optimizeLoops) {
+				worker.loops.enterLoop(this.info.start);
+			}
+
+			for (int i = lo; i <= hi && !this.failed; i++) {
+				worker.assign(this.var, i);
+				worker.jump(this.reset);
+
+				while (worker.currentToken.type != TokenType.ENDFOR) {
+					if (worker.currentToken.type == TokenType.END)
+						throw new Exception("Missing ENDFOR.");
+					worker.evalStatement();
+					if (worker.currentToken.type == TokenType.COMMENT) worker.consume(TokenType.COMMENT);
+					if (worker.currentToken.type == TokenType.NEWLINE) worker.consume(TokenType.NEWLINE);
+				}
+			}
+		} catch (Exception e) {
+			chunk.error = e;
+		}
+
+		worker.out.flush();
+		return chunk;
+	}
+}
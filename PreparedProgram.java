@@ -0,0 +1,68 @@
+import java.io.FileReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+public class PreparedProgram {
+
+	// A program that has been lexed and analyzed and is ready to run. Nothing
+	// in it changes while running, so one PreparedProgram can be run any
+	// number of times, even by several interpreters at once.
+	String name;
+	ArrayList<Token> program;
+	ProgramAnalysis analysis;
+	ArrayList<String> diagnostics;   // Lexer errors, printed when the program runs
+
+
+	PreparedProgram(String name, ArrayList<Token> program) {
+		this.name = name;
+		this.program = program;
+		this.analysis = new ProgramAnalysis(program);
+		this.diagnostics = new ArrayList<String>();
+	}
+
+
+	public static PreparedProgram fromFile(String filename) throws Exception {
+		return load(filename, new FileReader(filename));
+	}
+
+
+	public static PreparedProgram fromSource(String name, String source) throws Exception {
+		return load(name, new StringReader(source));
+	}
+
+
+	static PreparedProgram load(String name, Reader reader) throws Exception {
+		long startNanos = System.nanoTime();
+		EngineEvents.ProgramLoad event = null;
+		if (EngineEvents.enabled) {
+			event = new EngineEvents.ProgramLoad();
+			event.begin();
+		}
+
+		Lexer lexer = new Lexer(reader, name);
+		ArrayList<Token> program = new ArrayList<Token>();
+		Token t;
+
+		// Read all of the program tokens into an ArrayList
+		try {
+			do {
+				t = lexer.nextToken();
+				program.add(t);
+			} while (t.type != TokenType.EOF);
+		} finally {
+			reader.close();
+		}
+
+		PreparedProgram prepared = new PreparedProgram(name, Inliner.inline(program));
+		prepared.diagnostics.addAll(lexer.diagnostics);
+
+		EngineMetrics.global.recordLoad(System.nanoTime() - startNanos);
+		if (event != null && event.shouldCommit()) {
+			event.file = name;
+			event.tokens = program.size();
+			event.commit();
+		}
+		return prepared;
+	}
+}
@@ -0,0 +1,426 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ProgramAnalysis {
+
+	// Static facts about a loaded program. Everything here is computed from
+	// the token list alone, lazily, and cached because the tokens never change.
+	// The caches are shared by the interpreters running parallel loops.
+	ArrayList<Token> program;
+	ConcurrentHashMap<String, Integer> subStarts;
+	ConcurrentHashMap<String, HashSet<String>> subWrites;
+	ConcurrentHashMap<Integer, LoopInfo> loops;
+	ConcurrentHashMap<String, SubSummary> summaries;
+	ConcurrentHashMap<Integer, Integer> orOperandEnds;
+	ConcurrentHashMap<Integer, Integer> andOperandEnds;
+	ConcurrentHashMap<Integer, Boolean> conditionGroups;
+
+
+	public ProgramAnalysis(ArrayList<Token> program) {
+		this.program = program;
+		this.subStarts = new ConcurrentHashMap<String, Integer>();
+		this.subWrites = new ConcurrentHashMap<String, HashSet<String>>();
+		this.loops = new ConcurrentHashMap<Integer, LoopInfo>();
+		this.summaries = new ConcurrentHashMap<String, SubSummary>();
+		this.orOperandEnds = new ConcurrentHashMap<Integer, Integer>();
+		this.andOperandEnds = new ConcurrentHashMap<Integer, Integer>();
+		this.conditionGroups = new ConcurrentHashMap<Integer, Boolean>();
+
+		// Find every "sub NAME" so calls can be resolved before the
+		// definition has been executed
+		for (int i = 0; i + 1 < program.size(); i++) {
+			if (program.get(i).type == TokenType.SUB && program.get(i + 1).type == TokenType.NAME) {
+				this.subStarts.put(program.get(i + 1).value, i);
+			}
+		}
+	}
+
+
+	public int subStart(String name) {
+		Integer start = this.subStarts.get(name);
+		return start == null ? -1 : start;
+	}
+
+
+	public int blockEnd(int start) {
+		// Finds the ENDWHILE, ENDFOR or ENDSUB closing the block opened at start
+		TokenType open = this.program.get(start).type;
+		TokenType close;
+
+		if (open == TokenType.WHILE) {
+			close = TokenType.ENDWHILE;
+		} else if (open == TokenType.FOR) {
+			close = TokenType.ENDFOR;
+		} else {
+			close = TokenType.ENDSUB;
+		}
+
+		int depth = 0;
+		for (int i = start; i < this.program.size(); i++) {
+			TokenType type = this.program.get(i).type;
+			if (type == open) {
+				depth++;
+			} else if (type == close) {
+				depth--;
+				if (depth == 0) {
+					return i;
+				}
+			}
+		}
+		return this.program.size() - 1;
+	}
+
+
+	public HashSet<String> writes(int from, int to) {
+		// Every variable that may be assigned while executing tokens [from, to),
+		// including assignments made by the subroutines called from there.
+		// Returns null if a call cannot be resolved.
+		HashSet<String> result = new HashSet<String>();
+
+		if (!this.collectWrites(from, to, result, new HashSet<String>())) {
+			return null;
+		}
+		return result;
+	}
+
+
+	public HashSet<String> subWrites(String name) {
+		HashSet<String> writes = this.subWrites.get(name);
+
+		if (writes == null) {
+			int start = this.subStart(name);
+			writes = start < 0 ? null : this.writes(start, this.blockEnd(start));
+			if (writes != null) {
+				this.subWrites.put(name, writes);
+			}
+		}
+		return writes;
+	}
+
+
+	boolean collectWrites(int from, int to, HashSet<String> result, HashSet<String> visiting) {
+		for (int i = from; i < to; i++) {
+			Token t = this.program.get(i);
+
+			if (t.type == TokenType.NAME && this.program.get(i + 1).type == TokenType.ASSIGN) {
+				result.add(t.value);
+			} else if (t.type == TokenType.NAME && this.isArrayStore(i)) {
+				result.add(t.value);
+			} else if (t.type == TokenType.VAR && this.program.get(i + 1).type == TokenType.NAME) {
+				result.add(this.program.get(i + 1).value);
+			} else if (t.type == TokenType.INPUT && this.program.get(i + 1).type == TokenType.NAME) {
+				result.add(this.program.get(i + 1).value);
+			} else if (t.type == TokenType.CALL && this.program.get(i + 1).type == TokenType.NAME) {
+				String callee = this.program.get(i + 1).value;
+				int start = this.subStart(callee);
+
+				if (start < 0) {
+					return false;
+				}
+
+				// Recursive calls add nothing new
+				if (visiting.add(callee)) {
+					if (!this.collectWrites(start, this.blockEnd(start), result, visiting)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+
+	public boolean isArrayStore(int name) {
+		// True for the NAME of "NAME[EXPRESSION] := ..."
+		if (this.program.get(name + 1).type != TokenType.LEFT_BRACKET) {
+			return false;
+		}
+
+		int depth = 0;
+		for (int i = name + 1; i < this.program.size(); i++) {
+			TokenType type = this.program.get(i).type;
+			if (type == TokenType.LEFT_BRACKET) {
+				depth++;
+			} else if (type == TokenType.RIGHT_BRACKET) {
+				depth--;
+				if (depth == 0) {
+					return this.program.get(i + 1).type == TokenType.ASSIGN;
+				}
+			} else if (type == TokenType.NEWLINE || type == TokenType.EOF) {
+				break;
+			}
+		}
+		return false;
+	}
+
+
+	public int conditionEnd(int start, boolean stopAtAnd) {
+		// The token after the operand of OR (or of AND, if stopAtAnd) that
+		// begins at start. A short-circuited operand is skipped by jumping
+		// straight here, so each operand is scanned only once.
+		ConcurrentHashMap<Integer, Integer> ends = stopAtAnd ? this.andOperandEnds : this.orOperandEnds;
+		Integer end = ends.get(start);
+
+		if (end == null) {
+			end = this.scanOperand(start, stopAtAnd);
+			ends.put(start, end);
+		}
+		return end;
+	}
+
+
+	int scanOperand(int start, boolean stopAtAnd) {
+		int depth = 0;
+		for (int i = start; i < this.program.size(); i++) {
+			TokenType type = this.program.get(i).type;
+
+			if (type == TokenType.LEFT_PAREN || type == TokenType.LEFT_BRACKET) {
+				depth++;
+			} else if (type == TokenType.RIGHT_PAREN || type == TokenType.RIGHT_BRACKET) {
+				// An unmatched ")" closes the group the condition is in
+				if (depth == 0) {
+					return i;
+				}
+				depth--;
+			} else if (type == TokenType.COLON || type == TokenType.NEWLINE || type == TokenType.EOF) {
+				return i;
+			} else if (depth == 0 && (type == TokenType.OR || (stopAtAnd && type == TokenType.AND))) {
+				return i;
+			}
+		}
+		return this.program.size() - 1;
+	}
+
+
+	public boolean isConditionGroup(int start) {
+		// True if the parentheses opening at start hold a condition, such as
+		// "(a < b or c)", rather than arithmetic, such as "(a + b) * c"
+		Boolean group = this.conditionGroups.get(start);
+
+		if (group == null) {
+			group = false;
+			int depth = 0;
+			for (int i = start; i < this.program.size(); i++) {
+				TokenType type = this.program.get(i).type;
+
+				if (type == TokenType.LEFT_PAREN) {
+					depth++;
+				} else if (type == TokenType.RIGHT_PAREN) {
+					depth--;
+					if (depth == 0) {
+						break;
+					}
+				} else if (type == TokenType.COLON || type == TokenType.NEWLINE || type == TokenType.EOF) {
+					break;
+				} else if (isConditionOperator(type)) {
+					group = true;
+					break;
+				}
+			}
+			this.conditionGroups.put(start, group);
+		}
+		return group;
+	}
+
+
+	static boolean isConditionOperator(TokenType type) {
+		return type == TokenType.AND || type == TokenType.OR || type == TokenType.NOT
+			|| type == TokenType.LESS_THAN || type == TokenType.LESS_THAN_OR_EQUAL
+			|| type == TokenType.GREATER_THAN || type == TokenType.GREATER_THAN_OR_EQUAL
+			|| type == TokenType.EQUAL || type == TokenType.NOT_EQUAL;
+	}
+
+
+	public LoopInfo loop(int start) {
+		LoopInfo info = this.loops.get(start);
+
+		if (info == null) {
+			info = new LoopInfo(this, start);
+			this.loops.put(start, info);
+		}
+		return info;
+	}
+
+
+	public SubSummary summary(String name) {
+		SubSummary summary = this.summaries.get(name);
+
+		if (summary == null) {
+			summary = this.summarize(name, new HashMap<String, Integer>());
+		}
+		return summary;
+	}
+
+
+	public int forTo(int start) {
+		// The "to" of "for v := a to b:" is the first NAME that directly
+		// follows a complete operand, since nothing else can
+		for (int i = start + 3; i < this.program.size(); i++) {
+			TokenType previous = this.program.get(i - 1).type;
+
+			if (this.program.get(i).type == TokenType.NAME && (previous == TokenType.NAME
+					|| previous == TokenType.NUMBER || previous == TokenType.RIGHT_PAREN
+					|| previous == TokenType.RIGHT_BRACKET)) {
+				return i;
+			} else if (this.program.get(i).type == TokenType.COLON) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+
+	SubSummary summarize(String name, HashMap<String, Integer> visiting) {
+		// visiting maps the subs being summarized to their depth in the
+		// call chain. A finished summary is kept in summaries, so each sub is
+		// walked once, unless it calls back into a sub deeper than itself is
+		// still open: its summary then depends on where the walk started.
+		SubSummary summary = this.summaries.get(name);
+		if (summary != null) {
+			return summary;
+		}
+
+		summary = new SubSummary();
+		int start = this.subStart(name);
+		Integer open = visiting.get(name);
+
+		// Unknown and recursive subs are never treated as pure
+		if (start < 0 || open != null) {
+			summary.effects = true;
+			if (open != null) {
+				summary.reaches = open;
+			}
+			return summary;
+		}
+
+		int depth = visiting.size();
+		visiting.put(name, depth);
+		this.summarize(start + 2, this.blockEnd(start), summary, visiting, true);
+		visiting.remove(name);
+
+		if (summary.reaches >= depth) {
+			summary.reaches = Integer.MAX_VALUE;
+			this.summaries.put(name, summary);
+		}
+		return summary;
+	}
+
+
+	public SubSummary summarize(int from, int to) {
+		SubSummary summary = new SubSummary();
+		this.summarize(from, to, summary, new HashMap<String, Integer>(), false);
+		return summary;
+	}
+
+
+	void summarize(int from, int end, SubSummary summary, HashMap<String, Integer> visiting, boolean sub) {
+		// Variables assigned on every path to the current token. Entering a
+		// block saves the set, leaving it restores it, so assignments made
+		// inside an if or a loop body never count once the block is closed.
+		HashSet<String> assigned = new HashSet<String>();
+		ArrayList<HashSet<String>> saved = new ArrayList<HashSet<String>>();
+		String pending = null;
+		int to = -1;
+
+		for (int i = from; i < end; i++) {
+			Token t = this.program.get(i);
+
+			// An assignment is complete once its statement ends, which on a
+			// one-line block may be at the keyword opening or closing it
+			if (pending != null && (t.type == TokenType.NEWLINE || t.type == TokenType.COMMENT
+					|| t.type == TokenType.COLON || t.type == TokenType.IF || t.type == TokenType.WHILE
+					|| t.type == TokenType.FOR || t.type == TokenType.ELSE || t.type == TokenType.ENDIF
+					|| t.type == TokenType.ENDWHILE || t.type == TokenType.ENDFOR)) {
+				assigned.add(pending);
+				pending = null;
+			}
+
+			switch (t.type) {
+			case FOR:
+				to = this.forTo(i);
+				saved.add(new HashSet<String>(assigned));
+				break;
+
+			case IF:
+			case WHILE:
+				saved.add(new HashSet<String>(assigned));
+				break;
+
+			case ELSE:
+				assigned = new HashSet<String>(saved.get(saved.size() - 1));
+				break;
+
+			case ENDIF:
+			case ENDWHILE:
+			case ENDFOR:
+				if (!saved.isEmpty()) {
+					assigned = saved.remove(saved.size() - 1);
+				}
+				break;
+
+			case RETURN:
+				// Only a return at the top level of a sub ends the call
+				if (sub && saved.isEmpty()) {
+					i = end;
+				}
+				break;
+
+			case PRINT:
+				summary.prints = true;
+				break;
+
+			case INPUT:
+			case SUB:
+				summary.effects = true;
+				break;
+
+			case VAR:
+				summary.arrays = true;
+				summary.arrayStores = true;
+				i++;
+				break;
+
+			case CALL:
+				SubSummary callee = this.summarize(this.program.get(i + 1).value, visiting);
+				summary.prints |= callee.prints;
+				summary.effects |= callee.effects;
+				summary.arrays |= callee.arrays;
+				summary.arrayStores |= callee.arrayStores;
+				for (String read : callee.reads) {
+					if (!assigned.contains(read)) {
+						summary.reads.add(read);
+					}
+				}
+				summary.writes.addAll(callee.writes);
+				assigned.addAll(callee.definite);
+				summary.reaches = Math.min(summary.reaches, callee.reaches);
+				i++;
+				break;
+
+			case NAME:
+				if (this.program.get(i + 1).type == TokenType.LEFT_BRACKET) {
+					summary.arrays = true;
+					summary.arrayStores |= this.isArrayStore(i);
+				} else if (this.program.get(i + 1).type == TokenType.ASSIGN) {
+					summary.writes.add(t.value);
+					pending = t.value;
+				} else if (i == to) {
+					// The "to" of a for loop is lexed as a NAME
+				} else if (!assigned.contains(t.value)) {
+					summary.reads.add(t.value);
+				}
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		if (pending != null) {
+			assigned.add(pending);
+		}
+		summary.definite = assigned;
+	}
+}
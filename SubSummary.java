@@ -0,0 +1,33 @@
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+public class SubSummary {
+
+	// What a subroutine or loop body does to the global variables
+	boolean prints;
+	boolean effects;                // input, sub definitions, unknown or recursive calls
+	boolean arrays;                 // reads or stores array elements
+	boolean arrayStores;            // declares arrays or stores elements
+	LinkedHashSet<String> reads;    // variables that may be read before being assigned
+	LinkedHashSet<String> writes;   // variables that may be assigned
+	HashSet<String> definite;       // variables assigned on every path through
+	int reaches;                    // shallowest sub still being summarized that this one calls back into
+
+
+	SubSummary() {
+		this.prints = false;
+		this.effects = false;
+		this.arrays = false;
+		this.arrayStores = false;
+		this.reads = new LinkedHashSet<String>();
+		this.writes = new LinkedHashSet<String>();
+		this.definite = new HashSet<String>();
+		this.reaches = Integer.MAX_VALUE;
+	}
+
+
+	boolean isPure() {
+		// Array contents are not part of a memo key
+		return !this.prints && !this.effects && !this.arrays;
+	}
+}
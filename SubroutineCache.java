@@ -0,0 +1,150 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SubroutineCache {
+
+	// Results of pure subroutine calls, keyed on the sub's name and the values
+	// of the variables it reads. An entry holds the variables the call
+	// assigned and their final values, which are replayed on a hit.
+	//
+	// A lookup costs more than most calls it could save, so each sub is
+	// judged after its first probe lookups: if fewer than a quarter of them
+	// hit, its entries are dropped and its calls are no longer memoized.
+	static class Key {
+		String sub;
+		int[] values;
+
+		Key(String sub, int[] values) {
+			this.sub = sub;
+			this.values = values;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return this.sub.equals(key.sub) && Arrays.equals(this.values, key.values);
+		}
+
+		public int hashCode() {
+			return 31 * this.sub.hashCode() + Arrays.hashCode(this.values);
+		}
+	}
+
+
+	static class Entry {
+		String[] names;
+		int[] values;
+
+		Entry(String[] names, int[] values) {
+			this.names = names;
+			this.values = values;
+		}
+	}
+
+
+	static final int DEFAULT_PROBE = 32;
+
+	int capacity;
+	boolean lru;   // evict least recently used; otherwise first in, first out
+	int probe;     // lookups per sub before its hit rate is judged
+	long hits;
+	long misses;
+	LinkedHashMap<Key, Entry> entries;
+	HashMap<String, int[]> probes;   // Sub name -> {lookups, hits} while being judged
+	HashSet<String> disabled;        // Subs whose calls missed too often
+
+
+	public SubroutineCache(int capacity, String eviction, int probe) throws Exception {
+		if (eviction.equalsIgnoreCase("lru")) {
+			this.lru = true;
+		} else if (eviction.equalsIgnoreCase("fifo")) {
+			this.lru = false;
+		} else {
+			throw new Exception("Unknown eviction policy: " + eviction);
+		}
+
+		this.capacity = capacity;
+		this.probe = probe;
+		this.probes = new HashMap<String, int[]>();
+		this.disabled = new HashSet<String>();
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, this.lru) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return this.size() > SubroutineCache.this.capacity;
+			}
+		};
+	}
+
+
+	public boolean enabled() {
+		return this.capacity > 0;
+	}
+
+
+	public synchronized boolean enabled(String sub) {
+		return this.capacity > 0 && !this.disabled.contains(sub);
+	}
+
+
+	public synchronized Entry get(Key key) {
+		Entry entry = this.entries.get(key);
+
+		if (entry == null) {
+			this.misses++;
+		} else {
+			this.hits++;
+		}
+
+		if (this.probe > 0) {
+			int[] counts = this.probes.get(key.sub);
+			if (counts == null) {
+				counts = new int[2];
+				this.probes.put(key.sub, counts);
+			}
+			if (counts[0] < this.probe) {
+				counts[0]++;
+				counts[1] += entry == null ? 0 : 1;
+				if (counts[0] == this.probe && counts[1] * 4 < counts[0]) {
+					this.disabled.add(key.sub);
+					this.entries.keySet().removeIf(k -> k.sub.equals(key.sub));
+				}
+			}
+		}
+		return entry;
+	}
+
+
+	public synchronized void put(Key key, Entry entry) {
+		if (!this.disabled.contains(key.sub)) {
+			this.entries.put(key, entry);
+		}
+	}
+
+
+	public synchronized long hits() {
+		return this.hits;
+	}
+
+
+	public synchronized long misses() {
+		return this.misses;
+	}
+
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.probes.clear();
+		this.disabled.clear();
+		this.hits = 0;
+		this.misses = 0;
+	}
+}
@@ -3,12 +3,14 @@ enum TokenType {
    EQUAL, NOT_EQUAL, ASSIGN, PLUS, MINUS, TIMES, DIVIDE, EOF, IF, WHILE, THEN, DO,
    NEWLINE, UNKNOWN, AND, COLON, COMMA, COMMENT, MOD, VAR, SUB, PRINT, ENDIF, ENDSUB, 
    ENDWHILE, LEFT_PAREN, RIGHT_PAREN, INPUT, RETURN, NOT, OR, CALL, END, PROGRAM, FOR,
-   STRING, ENDFOR, ELSE
+   STRING, ENDFOR, ELSE, LEFT_BRACKET, RIGHT_BRACKET,
+   INLINED_CALL  // Left by the Inliner where a call was, value is the sub's name
 }
 
 public class Token {
    TokenType type;
    String value;  // Some tokens, like IDENT, have an associated value
+   int line;      // Source line the token was read from
    
    public Token(TokenType type) {
      this.type = type;
@@ -20,6 +22,12 @@ public class Token {
      this.value = value;
    }
    
+   public Token(TokenType type, String value, int line) {
+     this.type = type;
+     this.value = value;
+     this.line = line;
+   }
+   
    public String toString() {
      if (this.type == TokenType.NAME || this.type == TokenType.NUMBER) {
        return "<" + this.type + ", " + this.value + ">";
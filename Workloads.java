@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+
+public class Workloads {
+
+	// Generates scaled-up versions of the programs in Test/Basic and
+	// Test/Extra, each paired with the output it must produce. The expected
+	// output is computed here in Java, not by running the interpreter.
+	static class Workload {
+		String name;
+		String source;
+		String expected;
+
+		Workload(String name, String source, String expected) {
+			this.name = name;
+			this.source = source;
+			this.expected = expected;
+		}
+	}
+
+
+	public static Workload primes(int limit) {
+		// ListAllPrimes.a with the limit built in instead of read from input
+		StringBuilder source = new StringBuilder();
+		source.append("{ Primes up to " + limit + " by trial division }\n\n");
+		source.append("program Primes:\n");
+		source.append("  sub is_prime:\n");
+		source.append("    n := arg\n");
+		source.append("    prime := 1\n");
+		source.append("    i := 2\n");
+		source.append("    while i * i <= n:\n");
+		source.append("      if n % i = 0:\n");
+		source.append("        prime := 0\n");
+		source.append("        i := n\n");
+		source.append("      endif\n");
+		source.append("      i := i + 1\n");
+		source.append("    endwhile\n");
+		source.append("    return\n");
+		source.append("  endsub\n\n");
+		source.append("  current_value := 2\n");
+		source.append("  while current_value <= " + limit + ":\n");
+		source.append("    arg := current_value\n");
+		source.append("    call is_prime\n");
+		source.append("    if prime:\n");
+		source.append("      print current_value\n");
+		source.append("    endif\n");
+		source.append("    current_value := current_value + 1\n");
+		source.append("  endwhile\n");
+		source.append("end\n");
+
+		StringBuilder expected = new StringBuilder();
+		for (int n = 2; n <= limit; n++) {
+			boolean prime = true;
+			for (int i = 2; i * i <= n; i++) {
+				if (n % i == 0) {
+					prime = false;
+					break;
+				}
+			}
+			if (prime) {
+				expected.append(n).append('\n');
+			}
+		}
+
+		return new Workload("primes-" + limit, source.toString(), expected.toString());
+	}
+
+
+	public static Workload sieve(int limit) {
+		// The same primes as primes(limit), as in Sieve.a but crossing off
+		// from 2 * i, since i * i overflows for large limits
+		StringBuilder source = new StringBuilder();
+		source.append("{ Primes up to " + limit + " with the sieve of Eratosthenes }\n\n");
+		source.append("program Sieve:\n");
+		source.append("  var composite[" + (limit + 1) + "]\n");
+		source.append("  for i := 2 to " + limit + ":\n");
+		source.append("    if composite[i] = 0:\n");
+		source.append("      print i\n");
+		source.append("      j := i + i\n");
+		source.append("      while j <= " + limit + ":\n");
+		source.append("        composite[j] := 1\n");
+		source.append("        j := j + i\n");
+		source.append("      endwhile\n");
+		source.append("    endif\n");
+		source.append("  endfor\n");
+		source.append("end\n");
+
+		return new Workload("sieve-" + limit, source.toString(), primes(limit).expected);
+	}
+
+
+	public static Workload nestedLoops(int depth, int width) {
+		// depth for loops of width iterations each, counting the innermost body
+		StringBuilder source = new StringBuilder();
+		source.append("{ " + depth + " nested loops of " + width + " }\n\n");
+		source.append("program NestedLoops:\n");
+		source.append("  count := 0\n");
+
+		for (int d = 0; d < depth; d++) {
+			source.append(indent(d + 1)).append("for v" + d + " := 1 to " + width + ":\n");
+		}
+		source.append(indent(depth + 1)).append("count := count + 1\n");
+		for (int d = depth - 1; d >= 0; d--) {
+			source.append(indent(d + 1)).append("endfor\n");
+		}
+		source.append("  print count\n");
+		source.append("end\n");
+
+		long count = 1;
+		for (int d = 0; d < depth; d++) {
+			count *= width;
+		}
+
+		return new Workload("nested-loops-" + depth + "x" + width, source.toString(), count + "\n");
+	}
+
+
+	public static Workload callChain(int length, int calls) {
+		// Subroutines s0 .. s(length-1), each calling the next, called
+		// repeatedly from the main program
+		StringBuilder source = new StringBuilder();
+		source.append("{ A chain of " + length + " subroutines called " + calls + " times }\n\n");
+		source.append("program CallChain:\n");
+
+		for (int s = 0; s < length; s++) {
+			source.append("  sub s" + s + ":\n");
+			if (s + 1 < length) {
+				source.append("    call s" + (s + 1) + "\n");
+			} else {
+				source.append("    acc := acc + 1\n");
+			}
+			source.append("    return\n");
+			source.append("  endsub\n\n");
+		}
+
+		source.append("  acc := 0\n");
+		source.append("  c := 0\n");
+		source.append("  while c < " + calls + ":\n");
+		source.append("    call s0\n");
+		source.append("    c := c + 1\n");
+		source.append("  endwhile\n");
+		source.append("  print acc\n");
+		source.append("end\n");
+
+		return new Workload("call-chain-" + length + "x" + calls, source.toString(), calls + "\n");
+	}
+
+
+	public static Workload straightLine(int lines) {
+		// A long script with no control flow, rotating through four variables
+		StringBuilder source = new StringBuilder();
+		source.append("{ " + lines + " straight-line assignments }\n\n");
+		source.append("program StraightLine:\n");
+		source.append("  a := 1\n");
+		source.append("  b := 2\n");
+		source.append("  c := 3\n");
+		source.append("  d := 4\n");
+
+		String[] names = { "a", "b", "c", "d" };
+		int[] values = { 1, 2, 3, 4 };
+
+		for (int i = 0; i < lines; i++) {
+			int lhs = i % 4;
+			int x = (i + 1) % 4;
+			int y = (i + 2) % 4;
+			int k = i % 13 + 1;
+
+			source.append("  " + names[lhs] + " := (" + names[x] + " + " + names[y] + " * " + k + ") % 10007\n");
+			values[lhs] = (values[x] + values[y] * k) % 10007;
+		}
+
+		source.append("  print a, \" \", b, \" \", c, \" \", d\n");
+		source.append("end\n");
+
+		String expected = values[0] + " " + values[1] + " " + values[2] + " " + values[3] + "\n";
+		return new Workload("straight-line-" + lines, source.toString(), expected);
+	}
+
+
+	public static Workload nestedIf(int depth, int repeat) {
+		// if/else nested depth levels deep, like NestedIfElse.a. Every test
+		// is true, so the innermost print runs and each else is skipped.
+		StringBuilder source = new StringBuilder();
+		source.append("{ if/else nested " + depth + " deep, run " + repeat + " times }\n\n");
+		source.append("program NestedIf:\n");
+		source.append("  x := " + (depth + 1) + "\n");
+		source.append("  r := 0\n");
+		source.append("  while r < " + repeat + ":\n");
+
+		for (int d = 0; d < depth; d++) {
+			source.append(indent(d + 2)).append("if x > " + d + ":\n");
+		}
+		source.append(indent(depth + 2)).append("print " + depth + "\n");
+		for (int d = depth - 1; d >= 0; d--) {
+			source.append(indent(d + 2)).append("else:\n");
+			source.append(indent(d + 3)).append("print " + d + "\n");
+			source.append(indent(d + 2)).append("endif\n");
+		}
+
+		source.append("    r := r + 1\n");
+		source.append("  endwhile\n");
+		source.append("end\n");
+
+		StringBuilder expected = new StringBuilder();
+		for (int r = 0; r < repeat; r++) {
+			expected.append(depth).append('\n');
+		}
+
+		return new Workload("nested-if-" + depth + "x" + repeat, source.toString(), expected.toString());
+	}
+
+
+	public static ArrayList<Workload> suite(int scale) {
+		// The standard benchmark set; scale 1 runs in a few seconds
+		ArrayList<Workload> suite = new ArrayList<Workload>();
+		suite.add(primes(2000 * scale));
+		suite.add(sieve(20000 * scale));
+		suite.add(nestedLoops(3, 20 * scale));
+		suite.add(callChain(8, 2000 * scale));
+		suite.add(straightLine(5000 * scale));
+		suite.add(nestedIf(12, 500 * scale));
+		return suite;
+	}
+
+
+	static String indent(int level) {
+		StringBuilder spaces = new StringBuilder();
+		for (int i = 0; i < level; i++) {
+			spaces.append("  ");
+		}
+		return spaces.toString();
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Runs a script on a Daemon and prints its output, as a drop-in for
+ * "java Interpreter script.a". It is a native program so that a run costs
+ * a socket round trip instead of a JVM start.
+ *
+ *   cc -O2 -o lexical-client lexical-client.c
+ *   lexical-client [--socket PATH] [--max-statements N] [--max-millis N]
+ *                  script.a [input values...]
+ *
+ * The socket defaults to $LEXICAL_SOCKET, then /tmp/lexical.sock. Input
+ * values come from the arguments after the script; if there are none and
+ * stdin is not a terminal, stdin is read and sent instead, the way
+ * Interpreter reads it. The exit status is 0 if the script ran to
+ * completion, 1 if it failed and 2 if the daemon could not be reached.
+ */
+#include <errno.h>
+#include <limits.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+struct buffer {
+	char *data;
+	size_t length;
+	size_t capacity;
+};
+
+
+static void append(struct buffer *b, const char *text, size_t length)
+{
+	if (b->length + length + 1 > b->capacity) {
+		b->capacity = (b->length + length + 1) * 2;
+		b->data = realloc(b->data, b->capacity);
+		if (b->data == NULL) {
+			perror("lexical-client");
+			exit(2);
+		}
+	}
+	memcpy(b->data + b->length, text, length);
+	b->length += length;
+	b->data[b->length] = '\0';
+}
+
+
+static void append_string(struct buffer *b, const char *text)
+{
+	append(b, text, strlen(text));
+}
+
+
+static void append_header(struct buffer *b, const char *name, const char *value)
+{
+	append_string(b, name);
+	append_string(b, ": ");
+	append_string(b, value);
+	append_string(b, "\n");
+}
+
+
+static void append_stdin(struct buffer *b)
+{
+	/* Header values are one line, and input values are whitespace
+	 * separated, so line breaks become spaces */
+	char chunk[4096];
+	ssize_t n;
+
+	while ((n = read(STDIN_FILENO, chunk, sizeof chunk)) > 0) {
+		for (ssize_t i = 0; i < n; i++) {
+			if (chunk[i] == '\n' || chunk[i] == '\r') {
+				chunk[i] = ' ';
+			}
+		}
+		append(b, chunk, (size_t) n);
+	}
+}
+
+
+static int read_line(FILE *in, struct buffer *line)
+{
+	/* Returns 0 at end of input */
+	int c;
+
+	line->length = 0;
+	append(line, "", 0);
+	while ((c = getc(in)) != EOF) {
+		if (c == '\n') {
+			return 1;
+		}
+		char ch = (char) c;
+		append(line, &ch, 1);
+	}
+	return line->length > 0;
+}
+
+
+int main(int argc, char **argv)
+{
+	const char *socket_path = getenv("LEXICAL_SOCKET");
+	const char *script = NULL;
+	struct buffer request = { 0 };
+	struct buffer input = { 0 };
+	int input_args = 0;
+
+	if (socket_path == NULL) {
+		socket_path = "/tmp/lexical.sock";
+	}
+	append(&request, "", 0);
+	append(&input, "", 0);
+
+	for (int i = 1; i < argc; i++) {
+		if (strcmp(argv[i], "--socket") == 0 && i + 1 < argc) {
+			socket_path = argv[++i];
+		} else if (strcmp(argv[i], "--max-statements") == 0 && i + 1 < argc) {
+			append_header(&request, "max-statements", argv[++i]);
+		} else if (strcmp(argv[i], "--max-millis") == 0 && i + 1 < argc) {
+			append_header(&request, "max-millis", argv[++i]);
+		} else if (script == NULL) {
+			script = argv[i];
+		} else {
+			if (input_args++ > 0) {
+				append_string(&input, " ");
+			}
+			append_string(&input, argv[i]);
+		}
+	}
+
+	if (script == NULL) {
+		printf("Usage: lexical-client [--socket PATH] script.a [input values...]\n");
+		return 2;
+	}
+
+	/* The daemon may be running in another directory */
+	char path[PATH_MAX];
+	if (realpath(script, path) == NULL) {
+		snprintf(path, sizeof path, "%s", script);
+	}
+	append_header(&request, "path", path);
+
+	if (input_args == 0 && !isatty(STDIN_FILENO)) {
+		append_stdin(&input);
+	}
+	append_header(&request, "input", input.data);
+	append_string(&request, "\n");
+
+	struct sockaddr_un address = { 0 };
+	address.sun_family = AF_UNIX;
+	if (strlen(socket_path) >= sizeof address.sun_path) {
+		fprintf(stderr, "lexical-client: socket path too long: %s\n", socket_path);
+		return 2;
+	}
+	strcpy(address.sun_path, socket_path);
+
+	int fd = socket(AF_UNIX, SOCK_STREAM, 0);
+	if (fd < 0 || connect(fd, (struct sockaddr *) &address, sizeof address) < 0) {
+		fprintf(stderr, "lexical-client: %s: %s\n", socket_path, strerror(errno));
+		return 2;
+	}
+
+	for (size_t sent = 0; sent < request.length; ) {
+		ssize_t n = write(fd, request.data + sent, request.length - sent);
+		if (n < 0) {
+			fprintf(stderr, "lexical-client: %s\n", strerror(errno));
+			return 2;
+		}
+		sent += (size_t) n;
+	}
+
+	FILE *in = fdopen(fd, "r");
+	struct buffer frame = { 0 };
+	char chunk[4096];
+
+	while (read_line(in, &frame)) {
+		if (strncmp(frame.data, "O ", 2) == 0) {
+			long remaining = strtol(frame.data + 2, NULL, 10);
+			while (remaining > 0) {
+				size_t want = remaining < (long) sizeof chunk ? (size_t) remaining : sizeof chunk;
+				size_t got = fread(chunk, 1, want, in);
+				if (got == 0) {
+					break;
+				}
+				fwrite(chunk, 1, got, stdout);
+				remaining -= (long) got;
+			}
+			fflush(stdout);
+		} else if (strncmp(frame.data, "E ", 2) == 0) {
+			/* Report failures the way Interpreter.main does */
+			if (frame.length > 4) {
+				printf("%s\n", frame.data + 4);
+			}
+			return frame.data[2] == '0' ? 0 : 1;
+		}
+	}
+
+	printf("Connection closed by the daemon.\n");
+	return 2;
+}